@@ -0,0 +1,145 @@
+package com.atm;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+the compare-and-set balance of UserAccount under several threads: no deposit or withdrawal may be lost, a withdrawal never takes the balance
+below 0 and the money only ever moves, so whatever was there plus what went in minus what came out is what is left
+ */
+class BalanceConservationTest {
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int OPERATIONS = 100_000; // per thread
+    private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+    @Test
+    void concurrentDepositsAreNeverLost() {
+        UserAccount account = new UserAccount(1, new AccountOwner("deposits", null), 0);
+        long[] added = run(() -> {
+            for(int i = 0; i < OPERATIONS; i++){
+                account.deposit(3);
+            }
+
+            return new long[]{3L * OPERATIONS, 0};
+        });
+
+        assertEquals(added[0], account.getBalance());
+    }
+
+    @Test
+    void concurrentWithdrawalsNeverOverdraw() {
+        long start = (long) THREADS * OPERATIONS / 2; // only enough for half of the withdrawals
+        UserAccount account = new UserAccount(1, new AccountOwner("withdrawals", null), start);
+        long[] moved = run(() -> {
+            long out = 0;
+            for(int i = 0; i < OPERATIONS; i++){
+                if(account.withdraw(1)){
+                    out++;
+                }
+            }
+
+            return new long[]{0, out};
+        });
+
+        assertEquals(start, moved[1]); // every cent was taken exactly once
+        assertEquals(0, account.getBalance());
+    }
+
+    @Test
+    void mixedDepositsAndWithdrawalsConserveTheBalance() {
+        long start = 1_000;
+        UserAccount account = new UserAccount(1, new AccountOwner("mixed", null), start);
+        long[] moved = run(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long in = 0;
+            long out = 0;
+            for(int i = 0; i < OPERATIONS; i++){
+                long amount = random.nextLong(1, 100);
+                if(random.nextBoolean()){
+                    account.deposit(amount);
+                    in += amount;
+                }
+                else if(account.withdraw(amount)){
+                    out += amount;
+                }
+
+                assertTrue(account.getBalance() >= 0);
+            }
+
+            return new long[]{in, out};
+        });
+
+        assertEquals(start + moved[0] - moved[1], account.getBalance());
+    }
+
+    @Test
+    void transfersBetweenTwoAccountsConserveTheTotal() {
+        long start = 10_000;
+        UserAccount first = new UserAccount(1, new AccountOwner("first", null), start);
+        UserAccount second = new UserAccount(2, new AccountOwner("second", null), start);
+        run(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for(int i = 0; i < OPERATIONS; i++){
+                boolean forward = random.nextBoolean(); // both directions at once
+                UserAccount.transfer(forward ? first : second, forward ? second : first, random.nextLong(1, 500));
+            }
+
+            return new long[2];
+        });
+
+        assertTrue(first.getBalance() >= 0 && second.getBalance() >= 0);
+        assertEquals(2 * start, first.getBalance() + second.getBalance());
+    }
+
+    @Test
+    void transferThatWouldOverflowTheTargetMovesNothing() {
+        UserAccount from = new UserAccount(1, new AccountOwner("from", null), 1_000);
+        UserAccount to = new UserAccount(2, new AccountOwner("to", null), Long.MAX_VALUE - 10);
+        assertFalse(UserAccount.transfer(from, to, 11)); // one cent too many
+        assertEquals(1_000, from.getBalance());
+        assertEquals(Long.MAX_VALUE - 10, to.getBalance());
+
+        assertTrue(UserAccount.transfer(from, to, 10)); // exactly up to the limit still goes through
+        assertEquals(990, from.getBalance());
+        assertEquals(Long.MAX_VALUE, to.getBalance());
+    }
+
+    private static long[] run(Callable<long[]> task) { // runs the task on every thread at once, returns the sum of what they moved in and out
+        return assertTimeoutPreemptively(TIMEOUT, () -> {
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            try {
+                CountDownLatch ready = new CountDownLatch(THREADS);
+                List<Future<long[]>> results = new ArrayList<>();
+                for(int t = 0; t < THREADS; t++){
+                    results.add(pool.submit(() -> {
+                        ready.countDown();
+                        ready.await(); // so the threads really race instead of running one after the other
+                        return task.call();
+                    }));
+                }
+
+                long[] total = new long[2];
+                for(Future<long[]> result : results){
+                    long[] moved = result.get();
+                    total[0] += moved[0];
+                    total[1] += moved[1];
+                }
+
+                return total;
+            } finally {
+                pool.shutdownNow();
+            }
+        });
+    }
+}
@@ -0,0 +1,156 @@
+package com.atm;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+random transfers from many threads at once, between accounts that share their lock stripes crosswise (slot 1 and 6 on stripes 1 and 2, slot 2 and 5
+on stripes 2 and 1...), so transfers keep taking the same pair of locks from opposite sides. the money only moves between the accounts, so their sum
+can't change, and finishing within the timeout is what shows nothing deadlocked. through AccountManager every transfer is journaled and synced,
+which keeps the counts small: the in memory run does millions of them on AccountLocks and UserAccount alone
+ */
+class TransferStressTest {
+    private static final int ACCOUNTS = 16;
+    private static final int STRIPES = 4; // fewer than the accounts, so the stripes are shared
+    private static final int THREADS = 8;
+    private static final int TRANSFERS = 2_500; // per thread, through AccountManager
+    private static final int IN_MEMORY_TRANSFERS = 500_000; // per thread
+    private static final long START = 1_000_00; // cents per account
+    private static final Duration TIMEOUT = Duration.ofSeconds(120);
+
+    private static Path data;
+    private static UserAccount[] accounts;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        data = Files.createTempDirectory("atm-test");
+        System.setProperty("atm.data.dir", data.toString()); // read when AccountManager is first used, which is right below
+        System.setProperty("atm.pin.iterations", "1000"); // the pins aren't what is tested
+        System.setProperty("atm.account.stripes", String.valueOf(STRIPES));
+        AccountManager.initializeAccounts();
+        accounts = new UserAccount[ACCOUNTS];
+        for(int i = 0; i < ACCOUNTS; i++){
+            long id = AccountManager.createNewAccount("stress" + i, "1234");
+            accounts[i] = AccountManager.getUserAccount(id, "1234").getUserAccount();
+            AccountManager.deposit(accounts[i], START);
+        }
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        AccountManager.saveAllToFile();
+        try (Stream<Path> files = Files.walk(data)) {
+            for(Path file : (Iterable<Path>)files.sorted(Comparator.reverseOrder())::iterator){
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void randomTransfersConserveTheTotalAndFinish() throws IOException {
+        long[] outcomes = run(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long[] counted = new long[TransactionResult.values().length];
+            for(int i = 0; i < TRANSFERS; i++){
+                int from = random.nextInt(ACCOUNTS);
+                int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS; // any other account, in either direction
+                counted[AccountManager.transfer(accounts[from], accounts[to].getId(), random.nextLong(1, START / 4)).ordinal()]++;
+            }
+
+            return counted;
+        });
+
+        assertEquals(0, outcomes[TransactionResult.INVALID_TARGET.ordinal()]);
+        assertEquals(0, outcomes[TransactionResult.INVALID_AMOUNT.ordinal()]);
+        assertTrue(outcomes[TransactionResult.SUCCESS.ordinal()] > 0);
+        assertEquals(ACCOUNTS * START, total(accounts));
+        assertTrue(AccountManager.settle().isSettled()); // every balance matches its ledger entries
+    }
+
+    @Test
+    void millionsOfInMemoryTransfersConserveTheTotalAndFinish() {
+        UserAccount[] memory = new UserAccount[ACCOUNTS];
+        for(int i = 0; i < ACCOUNTS; i++){
+            memory[i] = new UserAccount(i + 1, new AccountOwner("memory" + i, null), START);
+        }
+
+        AccountLocks locks = new AccountLocks(STRIPES);
+        run(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for(int i = 0; i < IN_MEMORY_TRANSFERS; i++){
+                int from = random.nextInt(ACCOUNTS);
+                int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                long amount = random.nextLong(1, START / 4);
+                locks.lock(from, to); // the slots are the indexes, like AccountManager::transfer
+                try {
+                    long before = memory[from].getBalance() + memory[to].getBalance();
+                    UserAccount.transfer(memory[from], memory[to], amount);
+                    assertEquals(before, memory[from].getBalance() + memory[to].getBalance()); // nobody else touches the pair while we hold it
+                } finally {
+                    locks.unlock(from, to);
+                }
+            }
+
+            return new long[TransactionResult.values().length];
+        });
+
+        assertEquals(ACCOUNTS * START, total(memory));
+    }
+
+    private static long total(UserAccount[] accounts){
+        long total = 0;
+        for(UserAccount account : accounts){
+            assertTrue(account.getBalance() >= 0);
+            total += account.getBalance();
+        }
+
+        return total;
+    }
+
+    private static long[] run(Callable<long[]> task) { // runs the task on every thread at once, returns the sum of the outcomes they counted
+        return assertTimeoutPreemptively(TIMEOUT, () -> {
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            try {
+                CountDownLatch ready = new CountDownLatch(THREADS);
+                List<Future<long[]>> results = new ArrayList<>();
+                for(int t = 0; t < THREADS; t++){
+                    results.add(pool.submit(() -> {
+                        ready.countDown();
+                        ready.await();
+                        return task.call();
+                    }));
+                }
+
+                long[] outcomes = new long[TransactionResult.values().length];
+                for(Future<long[]> result : results){
+                    long[] counted = result.get();
+                    for(int i = 0; i < outcomes.length; i++){
+                        outcomes[i] += counted[i];
+                    }
+                }
+
+                return outcomes;
+            } finally {
+                pool.shutdownNow();
+            }
+        });
+    }
+}
@@ -0,0 +1,77 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+lookup of an account by id: the AccountIndex AccountManager uses against the linear scan over an ArrayList<UserAccount> it replaced.
+the scan is O(n) so expect it to take milliseconds at 10M accounts, run with -p accounts=10000 to keep it short
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AccountIndexBenchmark {
+    private static final int LOOKUPS = 1024; // ring of ids to look up, so the branch predictor can't learn a single one
+
+    @Param({"10000", "1000000", "10000000"})
+    public int accounts;
+
+    private AccountIndex index;
+    private ArrayList<UserAccount> list;
+    private long[] hits;
+    private long[] misses;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        long[] ids = BenchmarkData.ids(accounts);
+        index = new AccountIndex(accounts);
+        list = new ArrayList<>(accounts);
+        for(int i = 0; i < accounts; i++){
+            index.put(ids[i], i);
+            list.add(new UserAccount(ids[i], new AccountOwner("bench" + i, null), 0));
+        }
+
+        hits = new long[LOOKUPS];
+        for(int i = 0; i < LOOKUPS; i++){
+            hits[i] = ids[(int)((i * 2654435761L) % accounts)];
+        }
+
+        misses = BenchmarkData.missingIds(LOOKUPS);
+    }
+
+    @Benchmark
+    public int indexHit(){
+        return index.get(hits[next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public int indexMiss(){
+        return index.get(misses[next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public UserAccount listScanHit(){
+        return scan(hits[next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public UserAccount listScanMiss(){
+        return scan(misses[next++ & (LOOKUPS - 1)]);
+    }
+
+    private UserAccount scan(long id){ // what getUserAccount used to do
+        for(UserAccount acc : list){
+            if(acc.getId() == id){
+                return acc;
+            }
+        }
+
+        return null;
+    }
+}
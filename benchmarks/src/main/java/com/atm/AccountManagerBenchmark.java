@@ -0,0 +1,74 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+AccountManager::getUserAccount end to end (index lookup, lazy deserialization and pin check) on a store of the given size.
+every trial runs in its own fork on its own temporary copy of the data folder, the real one is never touched
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true", "-Datm.lockout.free=2147483647"}) // the wrong pins would lock the accounts out and skip the pin check
+public class AccountManagerBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int accounts;
+
+    private Path root;
+    private long[] hits;
+    private String[] hitPins;
+    private long[] misses;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("atm-bench");
+        Path data = Files.createDirectory(root.resolve("data"));
+        System.setProperty("atm.data.dir", data.toString()); // read when AccountManager is first used, which is right below
+        long[] ids = BenchmarkData.ids(accounts);
+        BenchmarkData.writeStore(data.resolve("accounts.dat").toString(), data.resolve("accounts.names").toString(), ids); // same names AccountManager builds
+        AccountManager.initializeAccounts();
+
+        hits = new long[LOOKUPS];
+        hitPins = new String[LOOKUPS];
+        for(int i = 0; i < LOOKUPS; i++){
+            int account = (int)((i * 2654435761L) % accounts);
+            hits[i] = ids[account];
+            hitPins[i] = AccountManager.pinToString(BenchmarkData.pin(account));
+        }
+
+        misses = BenchmarkData.missingIds(LOOKUPS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        AccountManager.saveAllToFile();
+        BenchmarkData.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public AccountFetchState getUserAccountHit(){
+        int i = next++ & (LOOKUPS - 1);
+        return AccountManager.getUserAccount(hits[i], hitPins[i]);
+    }
+
+    @Benchmark
+    public AccountFetchState getUserAccountWrongPin(){
+        int i = next++ & (LOOKUPS - 1);
+        return AccountManager.getUserAccount(hits[i], "abcd");
+    }
+
+    @Benchmark
+    public AccountFetchState getUserAccountMiss(){
+        return AccountManager.getUserAccount(misses[next++ & (LOOKUPS - 1)], "0000");
+    }
+}
@@ -0,0 +1,73 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+UserAccount balance updates with several threads on the same account(s), against the same updates on an account only one thread uses.
+run with -t to change the number of threads of the shared benchmarks
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BalanceContentionBenchmark {
+    private static final long START = Long.MAX_VALUE / 4; // far enough from 0 and from overflowing for any run
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final UserAccount first = new UserAccount(1, new AccountOwner("first", null), START);
+        final UserAccount second = new UserAccount(2, new AccountOwner("second", null), START);
+    }
+
+    @State(Scope.Thread)
+    public static class Own {
+        final UserAccount account = new UserAccount(3, new AccountOwner("own", null), START);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long sharedDeposit(Shared shared){
+        return shared.first.deposit(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean sharedWithdraw(Shared shared){
+        return shared.first.withdraw(1);
+    }
+
+    @Benchmark
+    @Group("sharedMixed")
+    @GroupThreads(2)
+    public long mixedDeposit(Shared shared){
+        return shared.first.deposit(1);
+    }
+
+    @Benchmark
+    @Group("sharedMixed")
+    @GroupThreads(2)
+    public boolean mixedWithdraw(Shared shared){
+        return shared.first.withdraw(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean sharedTransfer(Shared shared){
+        return UserAccount.transfer(shared.first, shared.second, 1) && UserAccount.transfer(shared.second, shared.first, 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long ownDeposit(Own own){
+        return own.account.deposit(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean ownWithdraw(Own own){
+        return own.account.withdraw(1);
+    }
+}
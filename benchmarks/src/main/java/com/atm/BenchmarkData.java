@@ -0,0 +1,96 @@
+package com.atm;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+final class BenchmarkData { // builds account files the benchmarks can run on, always from the same seed so that runs compare
+    static final long SEED = 42;
+
+    private BenchmarkData(){
+    }
+
+    static long[] ids(int count){ // distinct ids in the range UserAccount::randomId hands out
+        SplittableRandom random = new SplittableRandom(SEED);
+        AccountIndex seen = new AccountIndex(count);
+        long[] ids = new long[count];
+        for(int i = 0; i < count; i++){
+            long id;
+            do {
+                id = random.nextLong(100000000000000L, 999999999999999L);
+            } while(seen.contains(id));
+            seen.put(id, i);
+            ids[i] = id;
+        }
+
+        return ids;
+    }
+
+    static long[] missingIds(int count){ // ids below the range UserAccount::randomId hands out, so they are never found
+        SplittableRandom random = new SplittableRandom(SEED + 1);
+        long[] ids = new long[count];
+        for(int i = 0; i < count; i++){
+            ids[i] = random.nextLong(1, 100000000000000L);
+        }
+
+        return ids;
+    }
+
+    static int pin(int account){
+        return (int)((account * 2654435761L) % 10000);
+    }
+
+    static void writeStore(String slotsPath, String namesPath, long[] ids) throws IOException {
+        /*
+        the pins are hashed with a single iteration and one hash is shared by every account with the same pin, otherwise writing millions of
+        accounts would take hours. only the cost of checking a pin depends on the iterations, see PinVerifierBenchmark for that
+         */
+        PinHash[] credentials = new PinHash[10000];
+        MappedAccountStore store = MappedAccountStore.open(slotsPath, namesPath);
+        try {
+            for(int i = 0; i < ids.length; i++){
+                int pin = pin(i);
+                if(credentials[pin] == null){
+                    credentials[pin] = PinHash.create(AccountManager.pinToString(pin), 1);
+                }
+
+                store.append(ids[i], "bench" + i, credentials[pin], 10000);
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    static void writeLegacyAccounts(Path path, long[] ids) throws IOException { // the accounts.bin format, see AccountManager::loadLegacyAccounts
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile()), 1 << 16))) {
+            out.writeInt(ids.length);
+            for(int i = 0; i < ids.length; i++){
+                byte[] name = ("bench" + i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeInt(pin(i));
+                out.writeDouble(100.0);
+                out.writeLong(ids[i]);
+            }
+        }
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if(dir == null || !Files.exists(dir)){
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for(Path path : (Iterable<Path>)paths.sorted(Comparator.reverseOrder())::iterator){
+                Files.delete(path);
+            }
+        }
+    }
+}
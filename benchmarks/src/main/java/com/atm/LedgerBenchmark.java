@@ -0,0 +1,78 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+history queries against a TransactionLedger holding the given number of entries spread over a year and over the accounts:
+lastTen: the mini statement, the 10 newest transactions of an account
+dayStatement: the transactions of an account on a random day of that year, found through the jump pointers
+the ledger is built in a temp directory, 100M entries take 6.4GB of disk so that size has to be asked for with -p entries=100000000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LedgerBenchmark {
+    private static final int QUERIES = 1024; // ring of accounts and days to query, so the same entries don't stay in the cache
+    private static final long START = 1_600_000_000_000L; // epoch millis of the first entry
+    private static final long YEAR = TimeUnit.DAYS.toMillis(365);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Param({"1000000", "10000000"})
+    public long entries;
+
+    @Param({"1000", "100000"})
+    public int accounts;
+
+    private Path root;
+    private TransactionLedger ledger;
+    private int[] slots;
+    private long[] days;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("atm-bench");
+        ledger = TransactionLedger.open(root.resolve("accounts.ledger").toString(), new AccountIndex(accounts));
+        long[] balances = new long[accounts];
+        SplittableRandom random = new SplittableRandom(BenchmarkData.SEED);
+        for(long i = 0; i < entries; i++){
+            int slot = random.nextInt(accounts);
+            balances[slot] += 100;
+            ledger.ensureCapacity(1);
+            ledger.append(slot, slot + 1, START + i * YEAR / entries, Operation.DEPOSIT, 100, balances[slot]);
+        }
+
+        slots = new int[QUERIES];
+        days = new long[QUERIES];
+        for(int i = 0; i < QUERIES; i++){
+            slots[i] = random.nextInt(accounts);
+            days[i] = START + random.nextLong(YEAR / DAY) * DAY;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ledger.close();
+        BenchmarkData.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public LedgerEntry[] lastTen(){
+        return ledger.entries(slots[next++ & (QUERIES - 1)], Long.MIN_VALUE, Long.MAX_VALUE, 10);
+    }
+
+    @Benchmark
+    public LedgerEntry[] dayStatement(){
+        int i = next++ & (QUERIES - 1);
+        return ledger.entries(slots[i], days[i], days[i] + DAY - 1, 1000);
+    }
+}
@@ -0,0 +1,61 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+what happens on every num pad key press: the digit is appended to the amount, the display is updated and the amount is validated
+against the balance. typeAmount goes through the DisplayLabel like the real buttons do, parseAndCompare leaves swing out
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class NumPadValidatorBenchmark {
+    private static final int[] DIGITS = {1, 2, 5, 0, 7, 3}; // $125073
+
+    @Param({"0", "10000000"})
+    public long balance; // cents, 0 fails every withdrawal
+
+    private DisplayLabel output;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        output = new DisplayLabel();
+    }
+
+    @Benchmark
+    public boolean typeAmount(){
+        output.reset();
+        boolean valid = false;
+        for(int digit : DIGITS){
+            long amount = Money.appendDigit(output.getAmount(), digit);
+            if(amount >= 0){
+                output.setAmount(amount);
+            }
+
+            valid = NumPad.isValidAmount(output.getAmount(), balance, true);
+        }
+
+        return valid;
+    }
+
+    @Benchmark
+    public boolean parseAndCompare(){
+        long amount = 0;
+        boolean valid = false;
+        for(int digit : DIGITS){
+            long next = Money.appendDigit(amount, digit);
+            if(next >= 0){
+                amount = next;
+            }
+
+            valid = NumPad.isValidAmount(amount, balance, true);
+        }
+
+        return valid;
+    }
+}
@@ -0,0 +1,92 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/*
+one frame of the atm's custom components: the num pad keys, the amount display, the bill buttons and the login fields painted into an image,
+like the repaint manager paints them into its back buffer. frames/s is what painting can sustain, repaintRequests is how many repaints
+painting that frame asked for. when painting asks for repaints the next frame is already scheduled, so an idle window never stops painting:
+it has to stay at 0 for the window to go quiet. sprites is the size of the button sprite cache, 0 draws every button from scratch on every
+frame. runs headless, so it leaves out the blit to the screen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PaintBenchmark {
+    private static final int WIDTH = 350;
+    private static final int HEIGHT = 560;
+
+    @Param({"0", "256"})
+    public int sprites;
+
+    private JPanel root;
+    private BufferedImage frame;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Requests {
+        public long repaintRequests; // per frame, when divided by the frames
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        System.setProperty("atm.sprites.size", String.valueOf(sprites)); // read when the first button paints, every fork starts afresh
+        CountingRepaintManager.install();
+        root = new JPanel(null);
+        root.setBackground(MyColors.VIRTUAL_SCREEN_NO_ALFA);
+        root.setBounds(0, 0, WIDTH, HEIGHT);
+
+        DisplayLabel output = new DisplayLabel();
+        output.setBounds(10, 10, 200, 40);
+        root.add(output);
+        for(int digit = 0; digit < 10; digit++){ // laid out like NumPad, whose back button needs the assets folder
+            NumButton num = new NumButton(String.valueOf(digit), null);
+            num.setBounds(digit == 0 ? 80 : 10 + (digit - 1) % 3 * 70, digit == 0 ? 270 : 60 + (digit - 1) / 3 * 70, 60, 60);
+            root.add(num);
+        }
+
+        SubmitButton submit = new SubmitButton();
+        submit.setBounds(150, 270, 60, 60);
+        root.add(submit);
+        String[] bills = {"$1", "$5", "$10", "$20", "$50", "$100"};
+        for(int i = 0; i < bills.length; i++){
+            BillButton bill = new BillButton(bills[i], output, null);
+            bill.setBounds(230, 60 + i * 45, 100, 40);
+            root.add(bill);
+        }
+
+        InputField id = new InputField(15);
+        id.setBounds(10, 360, 300, 40);
+        root.add(id);
+        for(int i = 0; i < 4; i++){
+            PinInputField pin = new PinInputField();
+            pin.setBounds(10 + i * 50, 420, 40, 40);
+            root.add(pin);
+        }
+
+        LoginButton login = new LoginButton();
+        login.setText("Sign in");
+        login.setBounds(10, 480, 300, 40);
+        root.add(login);
+        root.doLayout();
+        frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public BufferedImage paint(Requests requests){
+        long before = AtmMetrics.UI_REPAINT_REQUESTS.sum();
+        Graphics2D g = frame.createGraphics();
+        root.paint(g);
+        g.dispose();
+        requests.repaintRequests += AtmMetrics.UI_REPAINT_REQUESTS.sum() - before;
+        return frame;
+    }
+}
@@ -0,0 +1,50 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+cost of checking a pin at the iteration count accounts are created with (-Datm.pin.iterations, 20000 by default):
+cached is a login that was verified a moment ago, uncached has to go through PBKDF2 on the verification pool
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PinVerifierBenchmark {
+    private PinVerifier cached;
+    private PinVerifier uncached;
+    private PinHash credential;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        cached = new PinVerifier(Runtime.getRuntime().availableProcessors(), 1 << 16, TimeUnit.HOURS.toMillis(1));
+        uncached = new PinVerifier(Runtime.getRuntime().availableProcessors(), 1 << 16, 0);
+        credential = PinHash.create("1234");
+        cached.verify(1, credential, "1234");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        cached.shutdown();
+        uncached.shutdown();
+    }
+
+    @Benchmark
+    public boolean cachedHit(){
+        return cached.verify(1, credential, "1234");
+    }
+
+    @Benchmark
+    public boolean uncached(){
+        return uncached.verify(1, credential, "1234");
+    }
+
+    @Benchmark
+    public boolean wrongPin(){ // failures are never cached
+        return cached.verify(1, credential, "4321");
+    }
+}
@@ -0,0 +1,79 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/*
+a whole end of day settlement (BatchSettlement::settle) of a ledger holding the given number of entries spread over the accounts, with the given
+number of fork-join threads (0 for one per core). the ledger is built in a temp directory, the nightly volume of 50M entries takes 3.2GB of disk
+so it has to be asked for with -p entries=50000000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SettlementBenchmark {
+    @Param({"1000000", "10000000"})
+    public long entries;
+
+    @Param({"1000", "100000"})
+    public int accounts;
+
+    @Param({"1", "0"})
+    public int threads;
+
+    private Path root;
+    private TransactionLedger ledger;
+    private ForkJoinPool pool;
+    private long[] ids;
+    private long[] balances;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("atm-bench");
+        ids = BenchmarkData.ids(accounts);
+        AccountIndex index = new AccountIndex(accounts);
+        for(int slot = 0; slot < accounts; slot++){
+            index.put(ids[slot], slot);
+        }
+
+        ledger = TransactionLedger.open(root.resolve("accounts.ledger").toString(), index);
+        balances = new long[accounts];
+        SplittableRandom random = new SplittableRandom(BenchmarkData.SEED);
+        long now = System.currentTimeMillis();
+        for(long i = 0; i < entries; i++){
+            int slot = random.nextInt(accounts);
+            Operation operation = balances[slot] >= 100 && random.nextBoolean() ? Operation.WITHDRAW : Operation.DEPOSIT;
+            balances[slot] += operation == Operation.WITHDRAW ? -100 : 100;
+            ledger.ensureCapacity(1);
+            ledger.append(slot, ids[slot], now, operation, 100, balances[slot]);
+        }
+
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        ledger.close();
+        BenchmarkData.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public int settle() throws IOException {
+        SettlementReport report = BatchSettlement.settle(ledger, ledger.size(), ids, balances, null, pool);
+        if(!report.isSettled()){
+            throw new IllegalStateException("the benchmark ledger doesn't settle");
+        }
+
+        return report.getMismatchCount();
+    }
+}
@@ -0,0 +1,155 @@
+package com.atm;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+the persistence paths of AccountManager at several store sizes:
+open: mapping accounts.dat and building the id index, what loadAccounts does on every start
+checkpoint: storeAccounts writing and forcing the given number of changed accounts
+migrateLegacy: converting an accounts.bin of that size into a new store, what the first start after an upgrade does
+readLegacy / readLegacyPerField: only decoding that accounts.bin, with the ChannelReader loader and with the per field loader it replaced.
+both hand the same accounts to a blackhole, no pin is hashed and nothing is appended, so the difference is the reading alone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Datm.pin.iterations=1"}) // the migration hashes every pin, with the real cost it would measure nothing else
+public class StoreBenchmark {
+    @Param({"10000", "1000000", "5000000"})
+    public int accounts;
+
+    @Param({"100", "10000"})
+    public int dirtyAccounts;
+
+    private Path root;
+    private String slotsPath;
+    private String namesPath;
+    private Path legacyPath;
+    private MappedAccountStore store;
+    private PinVerifier hasher;
+    private BitSet dirty;
+    private long[] balances;
+    private long generation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("atm-bench");
+        slotsPath = root.resolve("accounts.dat").toString();
+        namesPath = root.resolve("accounts.names").toString();
+        legacyPath = root.resolve("accounts.bin");
+        long[] ids = BenchmarkData.ids(accounts);
+        BenchmarkData.writeStore(slotsPath, namesPath, ids);
+        BenchmarkData.writeLegacyAccounts(legacyPath, ids);
+
+        store = MappedAccountStore.open(slotsPath, namesPath);
+        dirty = new BitSet(accounts);
+        SplittableRandom random = new SplittableRandom(BenchmarkData.SEED);
+        while(dirty.cardinality() < Math.min(dirtyAccounts, accounts)){
+            dirty.set(random.nextInt(accounts));
+        }
+
+        balances = new long[dirty.cardinality()];
+        hasher = PinVerifier.fromProperties();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        hasher.shutdown();
+        BenchmarkData.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        MappedAccountStore opened = MappedAccountStore.open(slotsPath, namesPath);
+        try {
+            return AccountManager.indexAccounts(opened).size();
+        } finally {
+            opened.close();
+        }
+    }
+
+    @Benchmark
+    public long checkpoint() throws IOException {
+        generation++;
+        for(int i = 0; i < balances.length; i++){
+            balances[i] = generation + i; // different every time so every slot really changes
+        }
+
+        return AccountManager.storeAccounts(store, dirty, balances);
+    }
+
+    @Benchmark
+    public int migrateLegacy() throws IOException {
+        Path target = Files.createTempDirectory(root, "migrated");
+        MappedAccountStore migrated = MappedAccountStore.open(target.resolve("accounts.dat").toString(), target.resolve("accounts.names").toString());
+        try {
+            AccountManager.loadLegacyAccounts(legacyPath.toString(), migrated, hasher);
+            return migrated.size();
+        } finally {
+            migrated.close();
+            BenchmarkData.deleteRecursively(target);
+        }
+    }
+
+    @Benchmark
+    public void readLegacy(Blackhole blackhole) throws IOException {
+        AccountManager.readLegacyAccounts(legacyPath.toString(), consumer(blackhole));
+    }
+
+    @Benchmark
+    public void readLegacyPerField(Blackhole blackhole) throws IOException { // the baseline
+        readPerField(legacyPath.toString(), consumer(blackhole));
+    }
+
+    private static ILegacyAccountVisitor consumer(Blackhole blackhole){
+        return (id, name, pin, balance) -> {
+            blackhole.consume(id);
+            blackhole.consume(name);
+            blackhole.consume(pin);
+            blackhole.consume(balance);
+        };
+    }
+
+    private static void readPerField(String path, ILegacyAccountVisitor visitor) throws IOException {
+        // the loader as it was before ChannelReader: one stream read per field into a 32 byte array, wrapped in a new ByteBuffer every time.
+        // kept as it was, short reads and names over 32 bytes included, the generated names are short enough
+        BufferedInputStream reader = new BufferedInputStream(new FileInputStream(path));
+        byte[] buffer = new byte[32];
+        reader.read(buffer,0, Integer.BYTES);
+        int availableAcc = ByteBuffer.wrap(buffer).getInt();
+        int strLength, pinCode;
+        String name;
+        double accBalance;
+        long accId;
+        for(int i = 0; i < availableAcc; i++){
+            reader.read(buffer,0, Integer.BYTES);
+            strLength = ByteBuffer.wrap(buffer).getInt();
+            reader.read(buffer, 0, strLength);
+            name = new String(buffer, 0 , strLength);
+            reader.read(buffer,0,Integer.BYTES);
+            pinCode = ByteBuffer.wrap(buffer).getInt();
+            reader.read(buffer,0, Double.BYTES);
+            accBalance = ByteBuffer.wrap(buffer).getDouble();
+            reader.read(buffer, 0, Long.BYTES);
+            accId = ByteBuffer.wrap(buffer).getLong();
+
+            visitor.visit(accId, name, pinCode, Money.fromDouble(accBalance)); // converted like the new loader does, the store only takes cents
+        }
+
+        reader.close();
+    }
+}
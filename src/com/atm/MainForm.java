@@ -1,6 +1,22 @@
 package com.atm;
 
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.imageio.ImageIO;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 import javax.swing.*;
 import javax.swing.border.BevelBorder;
 import java.awt.*;
@@ -9,20 +25,170 @@ import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.VarHandle;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
 
 public class MainForm {
     public static void main(String... args) {
-        AccountManager.initializeAccounts();
-        new ATMFrame();
+        /*
+        no arguments: a standalone ATM with its own account store, loaded while the window comes up
+        --server [port]: no window, serves the account store to terminals on localhost
+        --connect [host:]port: an ATM that uses the account store of a running server
+        --load [key=value...]: no window, runs the load generator (see LoadGenerator::main)
+        --settle: no window, settles the ledger against the balances and prints the report (see BatchSettlement)
+         */
+        if(args.length > 0 && args[0].equals("--server")){
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : AtmProtocol.DEFAULT_PORT;
+            try {
+                AccountManager.initializeAccounts();
+                AtmServer server = new AtmServer(port, new AtmEngine());
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    server.stop();
+                    try {
+                        AccountManager.saveAllToFile();
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                    }
+                }));
+                server.run();
+            } catch (IOException e) {
+                System.err.println("server failed: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        if(args.length > 0 && args[0].equals("--load")){
+            try {
+                LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IOException | InterruptedException e) {
+                System.err.println("load generator failed: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        if(args.length > 0 && args[0].equals("--settle")){
+            int status = 0;
+            try {
+                AccountManager.initializeAccounts();
+                SettlementReport report = AccountManager.settle();
+                report.print(System.out);
+                status = report.isSettled() ? 0 : 1;
+                AccountManager.saveAllToFile();
+            } catch (IOException e) {
+                System.err.println("settlement failed: " + e.getMessage());
+                status = 1;
+            }
+
+            System.exit(status);
+        }
+
+        StartupTimeline.end(StartupPhase.JVM); // a window from here on
+        StartupTimeline.begin(StartupPhase.ASSETS);
+        AssetCache.preload(MyAssets.all()).whenComplete((decoded, e) -> StartupTimeline.end(StartupPhase.ASSETS)); // while the accounts load or the server is reached
+
+        if(args.length > 1 && args[0].equals("--connect")){
+            String address = args[1];
+            int separator = address.lastIndexOf(':');
+            String host = separator < 0 ? "localhost" : address.substring(0, separator);
+            int port = Integer.parseInt(separator < 0 ? address : address.substring(separator + 1));
+            try {
+                new ATMFrame(new RemoteAtmService(host, port));
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(null, "Could not connect to " + address + ": " + e.getMessage(), "Connection Failed", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+            }
+            return;
+        }
+
+        if(Boolean.parseBoolean(System.getProperty("atm.startup.async", "true"))){
+            AccountManager.initializeAccountsInBackground().exceptionally(e -> { // the first login waits for them if it has to
+                SwingUtilities.invokeLater(() -> failedToLoad(e instanceof CompletionException ? e.getCause() : e));
+                return null;
+            });
+        }
+        else{
+            try {
+                AccountManager.initializeAccounts();
+            } catch (IOException e) {
+                failedToLoad(e);
+            }
+        }
+
+        new ATMFrame(new AtmEngine());
+    }
+
+    private static void failedToLoad(Throwable e){
+        System.err.println(e.getMessage());
+        JOptionPane.showMessageDialog(null, "Failed to load accounts from file. It might have been deleted or corrupted.", "Load Failed", JOptionPane.ERROR_MESSAGE);
+        System.exit(1); // there is nowhere to read or write accounts from
     }
 }
 
@@ -31,220 +197,5229 @@ public class MainForm {
 enum LoginState{
     SUCCESS, // login was successful
     WRONG_PIN, // the user entered a wrong pin
-    ACC_NOT_EXIST // an account with the given name does not exist
+    ACC_NOT_EXIST, // an account with the given name does not exist
+    LOCKED_OUT // too many wrong pins in a row, the account can't be logged into for a while
 }
 
 class AccountOwner {
      private final String name; // name of the account holder
-     private final String pinCode; // their pin code
+     private final PinHash credential; // hash of their pin code, null for the local copy a remote terminal keeps
 
-     AccountOwner(String name, String pinCode){
+     AccountOwner(String name, PinHash credential){
          this.name = name;
-         this.pinCode = pinCode;
+         this.credential = credential;
      }
 
     public String getName() {
         return name;
     }
 
-    public String getPinCode() {
-        return pinCode;
+    public PinHash getCredential() {
+        return credential;
+    }
+}
+
+final class PinHash {
+    /*
+    salted PBKDF2-HMAC-SHA256 of a pin, what gets stored instead of the pin itself. the iteration count is kept with every hash so it
+    can be raised (-Datm.pin.iterations) without invalidating the pins that were hashed before
+     */
+    static final int SALT_LENGTH = 16;
+    static final int HASH_LENGTH = 16;
+    static final int DEFAULT_ITERATIONS = Integer.getInteger("atm.pin.iterations", 20000);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2 = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every java runtime ships PBKDF2WithHmacSHA256", e);
+        }
+    });
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    PinHash(int iterations, byte[] salt, byte[] hash){
+        if(iterations <= 0 || salt.length != SALT_LENGTH || hash.length != HASH_LENGTH){
+            throw new IllegalArgumentException("malformed pin hash");
+        }
+
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    static PinHash create(String pin){
+        return create(pin, DEFAULT_ITERATIONS);
+    }
+
+    static PinHash create(String pin, int iterations){ // slow on purpose
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return new PinHash(iterations, salt, derive(pin, salt, iterations));
+    }
+
+    boolean matches(String pin){ // slow on purpose, the comparison takes the same time wherever the first difference is
+        return MessageDigest.isEqual(hash, derive(pin, salt, iterations));
+    }
+
+    int getIterations() {
+        return iterations;
+    }
+
+    byte[] getSalt() { // not copied, don't modify
+        return salt;
+    }
+
+    byte[] getHash() { // not copied, don't modify
+        return hash;
+    }
+
+    private static byte[] derive(String pin, byte[] salt, int iterations){
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_LENGTH * Byte.SIZE);
+        try {
+            return PBKDF2.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+class PinVerifier {
+    /*
+    checking a pin against its hash is slow on purpose, so it happens on a bounded pool (a burst of logins can't take every core away from the
+    transactions) and a successful check is remembered for a while: the cache maps an account id to a keyed fingerprint of (id, pin, stored hash)
+    and an expiry time. it is direct mapped over primitive arrays, a new entry simply replaces whatever was in its bucket, so it never grows past
+    the size it was created with. the fingerprint key is random for every run and never leaves memory
+     */
+    private static final int STRIPES = 64; // locks guarding the buckets, bucket i is guarded by locks[i % STRIPES]
+    private final ExecutorService pool;
+    private final long[] cachedIds;
+    private final long[] cachedFingerprints;
+    private final long[] expiresAt; // System.nanoTime() deadline, 0 for an empty bucket
+    private final int mask;
+    private final long ttlNanos;
+    private final Object[] locks;
+    private final ThreadLocal<Mac> fingerprintMac;
+
+    PinVerifier(int threads, int cacheSize, long ttlMillis){
+        if(threads <= 0 || cacheSize <= 0 || ttlMillis < 0){
+            throw new IllegalArgumentException("threads and cache size must be positive numbers and the ttl can't be negative");
+        }
+
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "pin-verifier");
+            t.setDaemon(true);
+            return t;
+        });
+        int buckets = Integer.highestOneBit(cacheSize - 1) << 1; // rounded up to a power of two
+        cachedIds = new long[Math.max(buckets, 1)];
+        cachedFingerprints = new long[cachedIds.length];
+        expiresAt = new long[cachedIds.length];
+        mask = cachedIds.length - 1;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        locks = new Object[STRIPES];
+        for(int i = 0; i < STRIPES; i++){
+            locks[i] = new Object();
+        }
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        fingerprintMac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("every java runtime ships HmacSHA256", e);
+            }
+        });
+    }
+
+    static PinVerifier fromProperties(){
+        return new PinVerifier(Integer.getInteger("atm.pin.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("atm.pin.cache.size", 1 << 16), Long.getLong("atm.pin.cache.ttl", 300000));
+    }
+
+    boolean verify(long id, PinHash credential, String pin){
+        long fingerprint = fingerprint(id, credential, pin);
+        int bucket = bucket(id);
+        synchronized (locks[bucket % STRIPES]){
+            if(cachedIds[bucket] == id && cachedFingerprints[bucket] == fingerprint && expiresAt[bucket] - System.nanoTime() > 0){
+                AtmMetrics.PIN_CACHE_HITS.increment();
+                return true;
+            }
+        }
+
+        AtmMetrics.PIN_CACHE_MISSES.increment();
+        long start = System.nanoTime();
+        boolean matches = await(pool.submit(() -> credential.matches(pin)));
+        AtmMetrics.PIN_VERIFY_NANOS.record(System.nanoTime() - start);
+        if(matches && ttlNanos > 0){
+            synchronized (locks[bucket % STRIPES]){
+                cachedIds[bucket] = id;
+                cachedFingerprints[bucket] = fingerprint;
+                expiresAt[bucket] = (System.nanoTime() + ttlNanos) | 1; // never 0
+            }
+        }
+
+        return matches;
+    }
+
+    PinHash hash(String pin){
+        return await(pool.submit(() -> PinHash.create(pin)));
+    }
+
+    PinHash[] hashAll(int[] pins, int count){ // hashes pins[0..count) on every thread of the pool, used when a whole store has to be converted
+        PinHash[] hashes = new PinHash[count];
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        int chunk = (count + threads - 1) / threads;
+        List<Future<?>> parts = new ArrayList<>();
+        for(int from = 0; from < count; from += chunk){
+            int start = from;
+            int end = Math.min(count, from + chunk);
+            parts.add(pool.submit(() -> {
+                for(int i = start; i < end; i++){
+                    hashes[i] = PinHash.create(AccountManager.pinToString(pins[i]));
+                }
+            }));
+        }
+
+        for(Future<?> part : parts){
+            await(part);
+        }
+
+        return hashes;
+    }
+
+    void shutdown(){
+        pool.shutdown();
+    }
+
+    private long fingerprint(long id, PinHash credential, String pin){
+        Mac mac = fingerprintMac.get();
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(0, id).array());
+        mac.update(credential.getHash());
+        mac.update(pin.getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(mac.doFinal()).getLong();
+    }
+
+    private int bucket(long id){
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private static <T> T await(Future<T> future){
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a pin hash", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException)e.getCause();
+            }
+
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
+
+class LoginThrottle {
+    /*
+    counts the wrong pins entered in a row for an account. the first freeAttempts are free, after that every wrong pin locks the account for
+    twice as long as the previous one (baseLockMillis, then 2x, 4x... up to maxLockMillis). a locked account is refused before its pin is even
+    hashed, so hammering it costs us next to nothing. failures are forgotten after a successful login or once the lock and windowMillis have passed.
+    the table is set associative over primitive arrays: an id can only live in one of WAYS consecutive entries, a new id takes an empty or expired
+    entry of its set or, under pressure, the one whose last failure is the oldest. every operation is O(WAYS) and nothing is allocated
+     */
+    private static final int WAYS = 8;
+    private static final int STRIPES = 64; // locks guarding the sets, set i is guarded by locks[i % STRIPES]
+    private final long[] ids; // 0 for an empty entry, account ids are never 0
+    private final long[] lastFailures; // epoch millis
+    private final int[] failures;
+    private final int setMask;
+    private final int freeAttempts;
+    private final long baseLockMillis;
+    private final long maxLockMillis;
+    private final long windowMillis;
+    private final Object[] locks;
+
+    LoginThrottle(int capacity, int freeAttempts, long baseLockMillis, long maxLockMillis, long windowMillis){
+        if(capacity < WAYS || freeAttempts < 0 || baseLockMillis <= 0 || maxLockMillis < baseLockMillis || windowMillis < 0){
+            throw new IllegalArgumentException("invalid login throttle settings");
+        }
+
+        int sets = Integer.highestOneBit(capacity / WAYS);
+        ids = new long[sets * WAYS];
+        lastFailures = new long[ids.length];
+        failures = new int[ids.length];
+        setMask = sets - 1;
+        this.freeAttempts = freeAttempts;
+        this.baseLockMillis = baseLockMillis;
+        this.maxLockMillis = maxLockMillis;
+        this.windowMillis = windowMillis;
+        locks = new Object[STRIPES];
+        for(int i = 0; i < STRIPES; i++){
+            locks[i] = new Object();
+        }
+    }
+
+    static LoginThrottle fromProperties(){
+        return new LoginThrottle(Integer.getInteger("atm.lockout.capacity", 1 << 18), Integer.getInteger("atm.lockout.free", 3),
+                Long.getLong("atm.lockout.base", 30000), Long.getLong("atm.lockout.max", 3600000), Long.getLong("atm.lockout.window", 900000));
+    }
+
+    long reserve(long id, long now){
+        /*
+        called before the pin is hashed. if the account isn't locked the attempt is counted as a wrong pin right away, in the same critical section
+        as the lock check, so attempts running in parallel can't all get past the check while their pins are being hashed: once the ones in flight
+        are enough to lock the account, the next one is refused. clear takes the attempt back if the pin was right.
+        returns how many more millis the account stays locked (and counts nothing) or, when the attempt may go on, minus how many wrong pins in a
+        row the account was at before it
+         */
+        int set = setOf(id);
+        synchronized (locks[set % STRIPES]){
+            int entry = find(set, id);
+            if(entry >= 0 && failures[entry] > freeAttempts){
+                long lockedFor = lastFailures[entry] + lockDuration(failures[entry]) - now;
+                if(lockedFor > 0){
+                    return lockedFor;
+                }
+            }
+
+            if(entry >= 0 && isExpired(entry, now)){
+                failures[entry] = 0; // too long ago, start over
+            }
+
+            if(entry < 0){
+                entry = victim(set, now);
+                ids[entry] = id;
+                failures[entry] = 0;
+            }
+
+            lastFailures[entry] = now;
+            return -(failures[entry]++);
+        }
+    }
+
+    void clear(long id){ // after a successful login, forgets the wrong pins and the attempts still in flight
+        int set = setOf(id);
+        synchronized (locks[set % STRIPES]){
+            int entry = find(set, id);
+            if(entry >= 0){
+                ids[entry] = 0;
+                failures[entry] = 0;
+            }
+        }
+    }
+
+    void restore(long id, int count, long lastFailure, long now){ // puts back what the store had when the program stopped
+        if(count <= 0){
+            return;
+        }
+
+        int set = setOf(id);
+        synchronized (locks[set % STRIPES]){
+            int entry = find(set, id);
+            if(entry < 0){
+                entry = victim(set, now);
+                ids[entry] = id;
+            }
+
+            failures[entry] = count;
+            lastFailures[entry] = lastFailure;
+            if(isExpired(entry, now)){
+                ids[entry] = 0;
+                failures[entry] = 0;
+            }
+        }
+    }
+
+    long lockDuration(int count){ // how long count wrong pins in a row lock an account for
+        if(count <= freeAttempts){
+            return 0;
+        }
+
+        int doublings = count - freeAttempts - 1;
+        if(doublings >= Long.numberOfLeadingZeros(baseLockMillis) - 1){ // would overflow
+            return maxLockMillis;
+        }
+
+        return Math.min(maxLockMillis, baseLockMillis << doublings);
+    }
+
+    private boolean isExpired(int entry, long now){
+        return failures[entry] == 0 || now - lastFailures[entry] >= Math.max(windowMillis, lockDuration(failures[entry]));
+    }
+
+    private int find(int set, long id){
+        int first = set * WAYS;
+        for(int i = first; i < first + WAYS; i++){
+            if(ids[i] == id){
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int victim(int set, long now){ // entry of the set a new id can take
+        int first = set * WAYS;
+        int oldest = first;
+        for(int i = first; i < first + WAYS; i++){
+            if(ids[i] == 0 || isExpired(i, now)){
+                return i;
+            }
+
+            if(lastFailures[i] < lastFailures[oldest]){
+                oldest = i;
+            }
+        }
+
+        return oldest;
+    }
+
+    private int setOf(long id){
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & setMask;
+    }
+}
+
+final class Money { // amounts of money are primitive longs counting cents so that the arithmetic is exact and never allocates
+    static final long CENTS_PER_DOLLAR = 100;
+    static final long MAX_DOLLARS = 999999999999999L; // 15 digits, what the display can hold (and still far from overflowing once in cents)
+
+    private Money(){
+    }
+
+    static long ofDollars(long dollars){
+        return Math.multiplyExact(dollars, CENTS_PER_DOLLAR);
+    }
+
+    static long toDollars(long cents){ // drops the cents
+        return cents / CENTS_PER_DOLLAR;
+    }
+
+    static long appendDigit(long cents, int digit){ // what typing a digit on the num pad does to a whole dollar amount, -1 once MAX_DOLLARS would be exceeded
+        long dollars = toDollars(cents);
+        if(dollars > (MAX_DOLLARS - digit) / 10){
+            return -1;
+        }
+
+        return ofDollars(dollars * 10 + digit);
+    }
+
+    static long fromDouble(double dollars){ // only used for balances that were saved as doubles before
+        return Math.round(dollars * CENTS_PER_DOLLAR);
+    }
+
+    static String format(long cents){ // 1205 -> "12.05"
+        long abs = Math.abs(cents);
+        long rest = abs % CENTS_PER_DOLLAR;
+        return (cents < 0 ? "-" : "") + (abs / CENTS_PER_DOLLAR) + (rest < 10 ? ".0" : ".") + rest;
     }
 }
 
 class UserAccount{
+     private static final VarHandle BALANCE; // lets us compare-and-set the balance without boxing it into an AtomicLong per account
      private final long id; // account id
      private final AccountOwner owner; // account owner
-     private double balance; // account balance
+     private volatile long balance; // account balance in cents, only changed through BALANCE once the account is shared
+
+    static {
+        try {
+            BALANCE = MethodHandles.lookup().findVarHandle(UserAccount.class, "balance", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public UserAccount(long id, AccountOwner owner, long balance){
+        this.owner = owner;
+        this.id = id;
+        setBalance(balance);
+    }
+
+    public UserAccount(AccountOwner owner, long balance) {
+        this(randomId(), owner, balance);
+
+    }
+
+    static long randomId(){ // account ids are random 15 digits numbers
+        return ThreadLocalRandom.current().nextLong(100000000000000L,999999999999999L);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public AccountOwner getOwner() {
+        return owner;
+    }
+
+    public long getBalance() { // in cents
+        return balance;
+    }
+
+    public void setBalance(long balance) {
+        if(balance < 0){
+            throw new IllegalArgumentException("balance must be a positive number"); // throw an exception in case the balance var is negative
+        }
+
+        this.balance = balance;
+    }
+
+    public boolean withdraw(long amount){ // checks the balance and debits it as one atomic step, returns false (and changes nothing) if there isn't enough money
+        throwIfNotPositive(amount);
+        long current;
+        do {
+            current = balance;
+            if(current < amount){
+                return false;
+            }
+        } while(!BALANCE.compareAndSet(this, current, current - amount)); // someone else changed the balance in between, try again with the new one
+
+        return true;
+    }
+
+    public long deposit(long amount){ // returns the new balance
+        throwIfNotPositive(amount);
+        long current;
+        long updated;
+        do {
+            current = balance;
+            updated = Math.addExact(current, amount);
+        } while(!BALANCE.compareAndSet(this, current, updated));
+
+        return updated;
+    }
+
+    public static boolean transfer(UserAccount from, UserAccount to, long amount){ // false (and nothing moves) if from hasn't enough money or to would overflow
+        // the debit is conditional and atomic, and a credit that would overflow is given back, so the money is never lost nor created, it is only in flight between the two CAS
+        if(from == to){
+            throw new IllegalArgumentException("cannot transfer to the same account");
+        }
+
+        if(!from.withdraw(amount)){
+            return false;
+        }
+
+        try {
+            to.deposit(amount);
+        } catch (ArithmeticException e) {
+            from.deposit(amount); // can't overflow, the money was there a moment ago
+            return false;
+        }
+
+        return true;
+    }
+
+    private static void throwIfNotPositive(long amount){
+        if(amount <= 0){
+            throw new IllegalArgumentException("amount must be a positive number");
+        }
+    }
+}
+
+class AccountFetchState{
+    private final LoginState state; // login state
+    private final UserAccount userAccount; // user account (null if login is unsuccessful, otherwise non-null)
+    private final long retryAfterMillis; // only for LOCKED_OUT
+
+    public AccountFetchState(LoginState state, UserAccount userAccount) {
+        this(state, userAccount, 0);
+    }
+
+    public AccountFetchState(LoginState state, UserAccount userAccount, long retryAfterMillis) {
+        this.state = state;
+        this.userAccount = userAccount;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public LoginState getState() {
+        return state;
+    }
+
+    public UserAccount getUserAccount() {
+        return userAccount;
+    }
+}
+
+class AccountLocks { // striped locks over the store slots, the balance of an account only changes while the lock of its slot's stripe is held
+    private final ReentrantLock[] locks;
+
+    AccountLocks(int stripes){
+        if(stripes <= 0){
+            throw new IllegalArgumentException("the number of stripes must be a positive number");
+        }
+
+        locks = new ReentrantLock[stripes];
+        for(int i = 0; i < stripes; i++){
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    static AccountLocks fromProperties(){
+        return new AccountLocks(Integer.getInteger("atm.account.stripes", 256));
+    }
+
+    void lock(int slot){
+        locks[stripeOf(slot)].lock();
+    }
+
+    void unlock(int slot){
+        locks[stripeOf(slot)].unlock();
+    }
+
+    void lock(int slot, int other){
+        // both stripes, always the lower one first, so two transfers going opposite ways (or any two that share their stripes crosswise) can't deadlock
+        int a = stripeOf(slot);
+        int b = stripeOf(other);
+        locks[Math.min(a, b)].lock();
+        if(a != b){
+            locks[Math.max(a, b)].lock();
+        }
+    }
+
+    void unlock(int slot, int other){
+        int a = stripeOf(slot);
+        int b = stripeOf(other);
+        if(a != b){
+            locks[Math.max(a, b)].unlock();
+        }
+
+        locks[Math.min(a, b)].unlock();
+    }
+
+    void lockAll(){ // in stripe order like ::lock, stops every balance from changing
+        for(ReentrantLock lock : locks){
+            lock.lock();
+        }
+    }
+
+    void unlockAll(){
+        for(int i = locks.length - 1; i >= 0; i--){
+            locks[i].unlock();
+        }
+    }
+
+    private int stripeOf(int slot){
+        return slot % locks.length;
+    }
+}
+
+class AccountIndex { // open addressing hash index from an account id to its position inside the stored accounts, keys are kept as primitive longs so a lookup never boxes
+    /*
+    lookups take no lock. a rehash builds a whole new table and publishes it through the volatile field, so a lookup that started on the old one
+    finishes on it with its keys, positions and mask all of the same size. a put into a table that has room writes the key before it release-writes
+    the position, and a lookup acquire-reads the position first, so a position it finds always comes with its key. entries are never removed
+    nor moved inside a table. puts are serialized on the index itself
+     */
+    private static final int EMPTY = 0; // positions are stored +1 so that a zeroed slot means empty
+    private static final float MAX_LOAD = 0.6f; // linear probing degrades quickly past that point
+    private static final VarHandle POSITION = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private volatile Table table;
+    private int size; // guarded by this
+
+    AccountIndex(int expectedSize){
+        int capacity = Integer.highestOneBit(Math.max(16, (int)(expectedSize / MAX_LOAD)) - 1) << 1; // smallest power of 2 that fits the expected size
+        table = new Table(capacity);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    int get(long id){ // returns the position of the account or -1 if there is none with that id
+        Table t = table; // the same table for the whole lookup
+        int i = slotOf(id, t.mask);
+        int pos;
+        while((pos = (int)POSITION.getAcquire(t.positions, i)) != EMPTY){
+            if(t.keys[i] == id){
+                return pos - 1;
+            }
+
+            i = (i + 1) & t.mask; // keep probing the next slot
+        }
+
+        return -1;
+    }
+
+    boolean contains(long id){
+        return get(id) >= 0;
+    }
+
+    synchronized void put(long id, int position){
+        if(position < 0){
+            throw new IllegalArgumentException("position cannot be a negative number");
+        }
+
+        if(size >= table.resizeThreshold){
+            table = rehash(table, table.keys.length << 1);
+        }
+
+        if(insert(table, id, position)){
+            size++;
+        }
+    }
+
+    private static boolean insert(Table t, long id, int position){ // false if the id was already there and only its position changed
+        int i = slotOf(id, t.mask);
+        while(t.positions[i] != EMPTY){
+            if(t.keys[i] == id){
+                POSITION.setRelease(t.positions, i, position + 1); // ids are unique, we just overwrite the position
+                return false;
+            }
+
+            i = (i + 1) & t.mask;
+        }
+
+        t.keys[i] = id;
+        POSITION.setRelease(t.positions, i, position + 1); // after the key, see get
+        return true;
+    }
+
+    private static int slotOf(long id, int mask){
+        // murmur3 finalizer, account ids are random but we don't want sequential ids (or the ones from a load test) to cluster
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return (int)id & mask;
+    }
+
+    private static Table rehash(Table old, int newCapacity){ // the new table is complete before anybody can see it
+        Table t = new Table(newCapacity);
+        for(int i = 0; i < old.keys.length; i++){
+            if(old.positions[i] != EMPTY){
+                insert(t, old.keys[i], old.positions[i] - 1);
+            }
+        }
+
+        return t;
+    }
+
+    private static final class Table {
+        final long[] keys;
+        final int[] positions;
+        final int mask;
+        final int resizeThreshold;
+
+        Table(int capacity){
+            keys = new long[capacity];
+            positions = new int[capacity];
+            mask = capacity - 1;
+            resizeThreshold = (int)(capacity * MAX_LOAD);
+        }
+    }
+}
+
+interface IJournalReplay { // receives the journal records in the order they were appended
+    void onAccountCreated(long id, String name, PinHash credential);
+    void onBalanceChanged(long id, long balance); // balance in cents, from before transactions went to the ledger
+    void onTransaction(long id, long entry, long timestamp, Operation operation, long amount, long balance); // entry is the number the ledger gave it, -1 if it had none
+}
+
+class TransactionJournal {
+    /*
+    append-only log of everything that happened since the last checkpoint of the account store. every record is framed as
+    [body length (4 bytes)][body][crc32 of the body (4 bytes)] so that a record that was only partially written when the program crashed
+    is detected on replay and cut off instead of being applied. balances are logged as their new value rather than as a delta which makes replaying
+    a record twice harmless, and a transaction carries the number of its ledger entry so the ledger only gets back the ones it lost.
+    the journal is split in numbered segments (accounts.journal.1, accounts.journal.2, ...): a checkpoint rolls over to a new segment and deletes the
+    sealed ones once the store has been forced, so records that are appended while a checkpoint is running are never lost. a segment also rolls over
+    once it reaches segmentLimit bytes, so that between two checkpoints JournalCompactor can merge the sealed ones (see ::compact).
+    the writes and the fsyncs happen under ReentrantLocks rather than monitors: a virtual thread blocked on file io inside a synchronized block
+    pins its carrier thread, one stuck behind an fsync while holding a ReentrantLock doesn't
+     */
+    private static final byte ACCOUNT_CREATED_PLAIN_PIN = 1; // written before pins were hashed, still replayed (the pin gets hashed then)
+    private static final byte BALANCE_CHANGED_DOUBLE = 2; // written before balances were kept in cents, still replayed
+    private static final byte BALANCE_CHANGED = 3;
+    private static final byte ACCOUNT_CREATED = 4; // [id][iterations][salt][hash][name]
+    private static final byte TRANSACTION = 5; // [id][ledger entry][timestamp][operation][amount][balance]
+    private static final byte TRANSFER = 6; // [from id][to id][from ledger entry][to ledger entry][timestamp][amount][from balance][to balance], both sides or none
+    private static final int FRAME_OVERHEAD = Integer.BYTES * 2; // length prefix + crc
+    static final int BALANCE_RECORD_SIZE = FRAME_OVERHEAD + 1 + Long.BYTES * 2; // all a compacted segment needs per account
+
+    private final Path basePath;
+    private final long segmentLimit; // bytes after which a segment rolls over
+    private final ReentrantLock segmentsLock; // deleting sealed segments and swapping in a compacted one never overlap
+    private final ReentrantLock appendLock; // guards the records being written and the segments they go to
+    private FileChannel channel; // current segment, guarded by appendLock
+    private long segment; // number of the current segment
+    private long segmentBase; // positions are counted across segments so that ::sync keeps working when the journal rolls over
+    private ByteBuffer recordBuffer; // reused for every record, guarded by appendLock
+    private final CRC32 crc;
+    private final List<FileChannel> sealing; // segments ::roll sealed that haven't been forced yet, oldest first, guarded by appendLock
+    private final ReentrantLock forceLock; // one fsync at a time, taken before appendLock
+    private volatile long writtenPosition; // end of the last appended record
+    private volatile long syncedPosition; // everything before this position has reached the disk
+
+    private TransactionJournal(Path basePath, long segmentLimit, long segment) throws IOException {
+        this.basePath = basePath;
+        this.segmentLimit = segmentLimit;
+        this.segment = segment;
+        segmentsLock = new ReentrantLock();
+        appendLock = new ReentrantLock();
+        channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        recordBuffer = ByteBuffer.allocate(256);
+        crc = new CRC32();
+        sealing = new ArrayList<>();
+        forceLock = new ReentrantLock();
+        segmentBase = writtenPosition = syncedPosition = 0;
+    }
+
+    static TransactionJournal openAndReplay(String path, long segmentLimit, IJournalReplay replay) throws IOException {
+        Path basePath = Paths.get(path).toAbsolutePath();
+        long last = 0;
+        for(long segment : existingSegments(basePath)){ // oldest first
+            Path segmentPath = segmentPath(basePath, segment);
+            int records;
+            try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+                records = replay(channel, replay);
+            }
+
+            if(records == 0){
+                Files.delete(segmentPath); // nothing in there for a checkpoint to take care of
+            }
+
+            last = segment;
+        }
+
+        return new TransactionJournal(basePath, segmentLimit, last + 1); // we never append to a segment that was written by a previous run
+    }
+
+    private static long[] existingSegments(Path basePath) throws IOException {
+        String prefix = basePath.getFileName().toString() + ".";
+        long[] segments = new long[0];
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(basePath.getParent())) {
+            for(Path file : files){
+                String name = file.getFileName().toString();
+                long segment;
+                if(name.equals(basePath.getFileName().toString())){
+                    segment = 0; // journal written before it was split in segments
+                }
+                else if(name.startsWith(prefix)){
+                    try {
+                        segment = Long.parseLong(name.substring(prefix.length()));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+                else{
+                    continue;
+                }
+
+                segments = Arrays.copyOf(segments, segments.length + 1);
+                segments[segments.length - 1] = segment;
+            }
+        }
+
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static int replay(FileChannel channel, IJournalReplay replay) throws IOException { // returns how many records were replayed
+        ByteBuffer in = ByteBuffer.allocate((int)Math.min(channel.size(), 1 << 20)); // read the journal in chunks of at most 1 MB
+        CRC32 check = new CRC32();
+        int records = 0;
+        long readPosition = 0;
+        in.limit(0);
+        while(true){
+            if(in.remaining() < Integer.BYTES || in.remaining() < Integer.BYTES + in.getInt(in.position()) + Integer.BYTES){
+                if(readPosition >= channel.size()){
+                    break; // nothing left to read, whatever is left in the buffer is a torn record
+                }
+
+                in.compact();
+                if(!in.hasRemaining()){ // a record bigger than our buffer can only be garbage
+                    break;
+                }
+
+                int read = channel.read(in, readPosition);
+                in.flip();
+                if(read <= 0){
+                    break;
+                }
+
+                readPosition += read;
+                continue;
+            }
+
+            int start = in.position();
+            int length = in.getInt();
+            if(length <= 0 || length > in.capacity()){
+                break; // corrupted length prefix
+            }
+
+            check.reset();
+            check.update(in.array(), in.arrayOffset() + in.position(), length);
+            int expected = in.getInt(in.position() + length);
+            if((int)check.getValue() != expected){
+                break; // corrupted body, nothing after this point can be trusted
+            }
+
+            byte type = in.get();
+            long id = in.getLong();
+            if(type == ACCOUNT_CREATED){
+                int iterations = in.getInt();
+                byte[] salt = new byte[PinHash.SALT_LENGTH];
+                byte[] hash = new byte[PinHash.HASH_LENGTH];
+                in.get(salt).get(hash);
+                byte[] name = new byte[length - 1 - Long.BYTES - Integer.BYTES - salt.length - hash.length];
+                in.get(name);
+                replay.onAccountCreated(id, new String(name, StandardCharsets.UTF_8), new PinHash(iterations, salt, hash));
+            }
+            else if(type == ACCOUNT_CREATED_PLAIN_PIN){
+                int pin = in.getInt();
+                byte[] name = new byte[length - 1 - Long.BYTES - Integer.BYTES];
+                in.get(name);
+                replay.onAccountCreated(id, new String(name, StandardCharsets.UTF_8), PinHash.create(AccountManager.pinToString(pin)));
+            }
+            else if(type == TRANSACTION){
+                long entry = in.getLong();
+                long timestamp = in.getLong();
+                Operation operation = Operation.values()[in.get()];
+                long amount = in.getLong();
+                replay.onTransaction(id, entry, timestamp, operation, amount, in.getLong());
+            }
+            else if(type == TRANSFER){
+                long to = in.getLong();
+                long fromEntry = in.getLong();
+                long toEntry = in.getLong();
+                long timestamp = in.getLong();
+                long amount = in.getLong();
+                long fromBalance = in.getLong();
+                replay.onTransaction(id, fromEntry, timestamp, Operation.TRANSFER, -amount, fromBalance);
+                replay.onTransaction(to, toEntry, timestamp, Operation.TRANSFER, amount, in.getLong());
+            }
+            else if(type == BALANCE_CHANGED){
+                replay.onBalanceChanged(id, in.getLong());
+            }
+            else if(type == BALANCE_CHANGED_DOUBLE){
+                replay.onBalanceChanged(id, Money.fromDouble(in.getDouble()));
+            }
+
+            in.position(start + Integer.BYTES + length + Integer.BYTES);
+            records++;
+        }
+
+        return records;
+    }
+
+    long logAccountCreated(long id, String name, PinHash credential) throws IOException { // returns the position to pass to ::sync
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        appendLock.lock();
+        try {
+            ByteBuffer body = beginRecord(1 + Long.BYTES + Integer.BYTES + PinHash.SALT_LENGTH + PinHash.HASH_LENGTH + nameBytes.length);
+            body.put(ACCOUNT_CREATED).putLong(id).putInt(credential.getIterations()).put(credential.getSalt()).put(credential.getHash()).put(nameBytes);
+            return endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long logTransaction(long id, long entry, long timestamp, Operation operation, long amount, long balance) throws IOException {
+        appendLock.lock();
+        try {
+            ByteBuffer body = beginRecord(1 + Long.BYTES * 3 + 1 + Long.BYTES * 2);
+            body.put(TRANSACTION).putLong(id).putLong(entry).putLong(timestamp).put((byte)operation.ordinal()).putLong(amount).putLong(balance);
+            return endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long logTransfer(long from, long to, long fromEntry, long toEntry, long timestamp, long amount, long fromBalance, long toBalance) throws IOException {
+        appendLock.lock();
+        try {
+            ByteBuffer body = beginRecord(1 + Long.BYTES * 8);
+            body.put(TRANSFER).putLong(from).putLong(to).putLong(fromEntry).putLong(toEntry).putLong(timestamp).putLong(amount).putLong(fromBalance).putLong(toBalance);
+            return endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    void sync(long position) throws IOException {
+        /*
+        group commit: whoever gets the lock first forces everything that has been appended so far, the callers that were waiting behind it
+        find their record already on disk and return without an fsync of their own
+         */
+        if(syncedPosition >= position){
+            return;
+        }
+
+        forceLock.lock();
+        try {
+            if(syncedPosition >= position){
+                return;
+            }
+
+            long target;
+            FileChannel current;
+            FileChannel[] sealed;
+            appendLock.lock(); // what was written up to target is in these
+            try {
+                target = writtenPosition;
+                current = channel;
+                sealed = sealing.toArray(new FileChannel[0]);
+            } finally {
+                appendLock.unlock();
+            }
+
+            force(sealed);
+            current.force(false);
+            syncedPosition = target;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    long roll() throws IOException {
+        /*
+        seals the current segment and starts a new one, returns the number of the sealed segment. this runs with the appends stopped (under the
+        journal and, for a checkpoint, under the state lock) so it only swaps the files: the sealed one is forced afterwards, by the next ::sync or by
+        ::forceSealed, without holding up anybody's transactions
+         */
+        appendLock.lock(); // already held when a record fills the segment, it is reentrant
+        try {
+            FileChannel next = FileChannel.open(segmentPath(segment + 1), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            sealing.add(channel);
+            channel = next;
+            segmentBase = writtenPosition;
+            return segment++;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    void forceSealed() throws IOException { // forces the segments ::roll sealed, to be called outside of the locks the roll was made under
+        FileChannel[] sealed;
+        forceLock.lock();
+        try {
+            appendLock.lock();
+            try {
+                sealed = sealing.toArray(new FileChannel[0]);
+            } finally {
+                appendLock.unlock();
+            }
+
+            force(sealed);
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    private void force(FileChannel[] sealed) throws IOException { // holding forceLock but not appendLock, closes them once they are on the disk
+        for(FileChannel segment : sealed){
+            segment.force(false);
+            appendLock.lock();
+            try {
+                sealing.remove(segment);
+            } finally {
+                appendLock.unlock();
+            }
+
+            segment.close();
+        }
+    }
+
+    void deleteSegmentsUpTo(long lastSegment) throws IOException { // called once the store holds everything those segments had
+        segmentsLock.lock();
+        try {
+            for(long segment : existingSegments(basePath)){
+                if(segment <= lastSegment){
+                    Files.deleteIfExists(segmentPath(segment));
+                }
+            }
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    long[] sealedSegments() throws IOException { // the segments nothing is appended to anymore, oldest first
+        long current;
+        appendLock.lock();
+        try {
+            current = segment;
+        } finally {
+            appendLock.unlock();
+        }
+
+        long[] segments = existingSegments(basePath);
+        int sealed = 0;
+        while(sealed < segments.length && segments[sealed] < current){
+            sealed++;
+        }
+
+        return Arrays.copyOf(segments, sealed);
+    }
+
+    long diskSize() throws IOException { // bytes of every segment on the disk
+        long size = 0;
+        for(long segment : existingSegments(basePath)){
+            try {
+                size += Files.size(segmentPath(segment));
+            } catch (NoSuchFileException ignored) {
+                // deleted by a checkpoint in the meantime
+            }
+        }
+
+        return size;
+    }
+
+    long compact(long[] segments, TransactionLedger ledger, IoRateLimiter limiter) throws IOException {
+        /*
+        merges sealed segments into one holding only what replaying them leaves behind: the accounts they created and the last balance of every account
+        they touched. the ledger is forced up to the entries their transactions carry first, since the merged segment can't give those back anymore.
+        the merged segment is written and forced under a temporary name and then moved over the newest of the segments before the older ones are deleted.
+        replaying it after them gives the same result, so a crash anywhere in between is harmless and the transactions never wait on any of it.
+        if a checkpoint deleted the segments in the meantime, the merged one is thrown away. returns how many bytes it saved (0 if it gave up)
+         */
+        Map<Long, String> names = new LinkedHashMap<>(); // in the order the accounts were created
+        Map<Long, PinHash> credentials = new HashMap<>();
+        Map<Long, Long> balances = new LinkedHashMap<>();
+        long[] lastEntry = {-1};
+        long before = 0;
+        for(long segment : segments){
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                limiter.acquire(channel.size());
+                before += channel.size();
+                replay(channel, new IJournalReplay() {
+                    @Override
+                    public void onAccountCreated(long id, String name, PinHash credential) {
+                        names.putIfAbsent(id, name);
+                        credentials.putIfAbsent(id, credential);
+                    }
+
+                    @Override
+                    public void onBalanceChanged(long id, long balance) {
+                        balances.put(id, balance);
+                    }
+
+                    @Override
+                    public void onTransaction(long id, long entry, long timestamp, Operation operation, long amount, long balance) {
+                        balances.put(id, balance);
+                        lastEntry[0] = Math.max(lastEntry[0], entry);
+                    }
+                });
+            } catch (NoSuchFileException e) {
+                return 0; // a checkpoint got there first
+            }
+        }
+
+        if(ledger != null && lastEntry[0] >= 0){
+            ledger.force(lastEntry[0] + 1);
+        }
+
+        Path target = segmentPath(segments[segments.length - 1]);
+        Path temp = target.resolveSibling(target.getFileName() + ".compact"); // not a segment number, so never replayed
+        long after = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            CRC32 check = new CRC32();
+            for(Map.Entry<Long, String> created : names.entrySet()){
+                byte[] name = created.getValue().getBytes(StandardCharsets.UTF_8);
+                PinHash credential = credentials.get(created.getKey());
+                int length = 1 + Long.BYTES + Integer.BYTES + PinHash.SALT_LENGTH + PinHash.HASH_LENGTH + name.length;
+                if(buffer.remaining() < FRAME_OVERHEAD + length){
+                    after += drain(out, buffer, limiter);
+                    if(buffer.capacity() < FRAME_OVERHEAD + length){
+                        buffer = ByteBuffer.allocate(FRAME_OVERHEAD + length);
+                    }
+                }
+
+                int start = buffer.position();
+                buffer.putInt(length).put(ACCOUNT_CREATED).putLong(created.getKey()).putInt(credential.getIterations()).put(credential.getSalt()).put(credential.getHash()).put(name);
+                frame(buffer, start, check);
+            }
+
+            for(Map.Entry<Long, Long> balance : balances.entrySet()){
+                if(buffer.remaining() < BALANCE_RECORD_SIZE){
+                    after += drain(out, buffer, limiter);
+                }
+
+                int start = buffer.position();
+                buffer.putInt(BALANCE_RECORD_SIZE - FRAME_OVERHEAD).put(BALANCE_CHANGED).putLong(balance.getKey()).putLong(balance.getValue());
+                frame(buffer, start, check);
+            }
+
+            after += drain(out, buffer, limiter);
+            out.force(true); // the length too, the file is new
+        }
+
+        segmentsLock.lock();
+        try {
+            for(long segment : segments){
+                if(!Files.exists(segmentPath(segment))){
+                    Files.deleteIfExists(temp);
+                    return 0;
+                }
+            }
+
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for(int i = 0; i < segments.length - 1; i++){
+                Files.deleteIfExists(segmentPath(segments[i]));
+            }
+        } finally {
+            segmentsLock.unlock();
+        }
+
+        return before - after;
+    }
+
+    private Path segmentPath(long segment){
+        return segmentPath(basePath, segment);
+    }
+
+    private static Path segmentPath(Path basePath, long segment){
+        return segment == 0 ? basePath : basePath.resolveSibling(basePath.getFileName() + "." + segment);
+    }
+
+    private static void frame(ByteBuffer buffer, int start, CRC32 check){ // appends the crc of the record whose length prefix is at start
+        check.reset();
+        check.update(buffer.array(), buffer.arrayOffset() + start + Integer.BYTES, buffer.position() - start - Integer.BYTES);
+        buffer.putInt((int)check.getValue());
+    }
+
+    private static long drain(FileChannel out, ByteBuffer buffer, IoRateLimiter limiter) throws IOException { // returns how many bytes were written
+        buffer.flip();
+        long written = buffer.remaining();
+        limiter.acquire(written);
+        while(buffer.hasRemaining()){
+            out.write(buffer);
+        }
+
+        buffer.clear();
+        return written;
+    }
+
+    private ByteBuffer beginRecord(int bodyLength){
+        if(recordBuffer.capacity() < FRAME_OVERHEAD + bodyLength){
+            recordBuffer = ByteBuffer.allocate(FRAME_OVERHEAD + bodyLength);
+        }
+
+        recordBuffer.clear();
+        recordBuffer.putInt(bodyLength);
+        return recordBuffer;
+    }
+
+    private long endRecord() throws IOException {
+        crc.reset();
+        crc.update(recordBuffer.array(), Integer.BYTES, recordBuffer.position() - Integer.BYTES);
+        recordBuffer.putInt((int)crc.getValue());
+        recordBuffer.flip();
+        while(recordBuffer.hasRemaining()){
+            channel.write(recordBuffer);
+        }
+
+        writtenPosition = segmentBase + channel.position();
+        long position = writtenPosition;
+        if(channel.position() >= segmentLimit){
+            roll(); // the caller's ::sync forces the sealed segment along with the new one
+        }
+
+        return position;
+    }
+}
+
+enum Operation{ // the ordinal is what the ledger and the journal store, new operations go at the end
+    WITHDRAW,
+    DEPOSIT,
+    TRANSFER // the ledger amount is negative on the side the money left
+}
+
+class LedgerEntry { // one transaction of an account as the ledger recorded it
+    private final long timestamp; // epoch millis
+    private final Operation operation;
+    private final long amount; // cents, negative for a transfer to another account
+    private final long balance; // cents, right after the transaction
+
+    LedgerEntry(long timestamp, Operation operation, long amount, long balance){
+        this.timestamp = timestamp;
+        this.operation = operation;
+        this.amount = amount;
+        this.balance = balance;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    Operation getOperation() {
+        return operation;
+    }
+
+    long getAmount() {
+        return amount;
+    }
+
+    long getBalance() {
+        return balance;
+    }
+}
+
+interface ILedgerVisitor { // receives the entries of the ledger in the order they were appended
+    void visit(long entry, long accountId, Operation operation, long amount, long balance);
+}
+
+class TransactionLedger {
+    /*
+    append-only history of every transaction. entries have a fixed width and live in numbered segments of SEGMENT_ENTRIES entries each
+    (accounts.ledger.0, accounts.ledger.1, ...) that stay mapped, so entry n is found with a shift and a mask and appending is a few writes into memory.
+    the entries of an account are chained from its newest one backwards and every entry also has a jump pointer that skips exponentially further back
+    (Myers' skew binary random access list), so the newest entry of an account older than a given time is found in O(log entries of the account) reads.
+    the only thing kept per account is the number of its newest entry (its head), by store slot.
+    header (accounts.ledger): [magic (4)][version (4)][entry count (8)][indexed count (8)][reserved]
+    entry:  [timestamp in epoch millis (8)][account id (8)][amount in cents (8)][balance after it in cents (8)][previous entry of the account (8)]
+            [jump entry (8)][index of the entry within the account (8)][operation (1)][reserved (7)]
+    heads (accounts.ledger.heads): [newest entry of the account in store slot i + 1 (8)] per slot, 0 for none
+    a checkpoint forces the new entries, then records their count in the header, then writes the heads that changed and only then records the indexed
+    count. entries past the entry count are ignored on open (the journal still has them) and the heads of entries past the indexed count are rebuilt.
+    ::force counts entries without writing their heads, for the journal compactor which drops the records that could have given them back
+     */
+    static final int ENTRY_SIZE = 64; // a power of 2 so an entry never straddles two pages
+    private static final int SEGMENT_SHIFT = 20; // 1M entries, 64MB per segment
+    private static final int SEGMENT_ENTRIES = 1 << SEGMENT_SHIFT;
+    private static final int VERSION = 1;
+    private static final int MAGIC = 0x41544D4C; // "ATML"
+    private static final int HEADER_SIZE = 64;
+    private static final int COUNT_OFFSET = 8;
+    private static final int INDEXED_COUNT_OFFSET = 16;
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int ACCOUNT_OFFSET = 8;
+    private static final int AMOUNT_OFFSET = 16;
+    private static final int BALANCE_OFFSET = 24;
+    private static final int PREVIOUS_OFFSET = 32;
+    private static final int JUMP_OFFSET = 40;
+    private static final int INDEX_OFFSET = 48;
+    private static final int OPERATION_OFFSET = 56;
+    private static final long NONE = -1;
+
+    private final Path basePath;
+    private final MappedByteBuffer header;
+    private final FileChannel headsChannel;
+    private MappedByteBuffer[] segments; // every segment up to the one being appended to is mapped
+    private long count; // entries appended so far
+    private long reserved; // entries ::reserve has mapped room for and that haven't been released yet
+    private long forcedCount; // entries known to be on the disk
+    private long[] heads; // newest entry per store slot, NONE if the account has none
+    private BitSet dirtyHeads; // heads changed since the last checkpoint
+
+    private TransactionLedger(Path basePath, MappedByteBuffer header, FileChannel headsChannel) throws IOException {
+        this.basePath = basePath;
+        this.header = header;
+        this.headsChannel = headsChannel;
+        count = forcedCount = header.getLong(COUNT_OFFSET);
+        segments = new MappedByteBuffer[0];
+        dirtyHeads = new BitSet();
+        loadHeads();
+        ensureCapacity(1);
+    }
+
+    static TransactionLedger open(String path, AccountIndex accounts) throws IOException { // creates the files if they don't exist
+        Path basePath = Paths.get(path).toAbsolutePath();
+        MappedByteBuffer header;
+        try (FileChannel channel = FileChannel.open(basePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean created = channel.size() == 0;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE); // stays valid once the channel is closed
+            if(created){
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.force();
+            }
+            else if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION){
+                throw new IOException("not a transaction ledger or an unsupported version");
+            }
+        }
+
+        FileChannel headsChannel = FileChannel.open(headsPath(basePath), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            TransactionLedger ledger = new TransactionLedger(basePath, header, headsChannel);
+            ledger.rebuildHeads(accounts);
+            return ledger;
+        } catch (IOException | RuntimeException e) {
+            headsChannel.close();
+            throw e;
+        }
+    }
+
+    synchronized long size() {
+        return count;
+    }
+
+    synchronized void ensureCapacity(int entries) throws IOException { // maps the segments the next entries go into, so that ::append itself can't fail
+        int needed = (int)((count + entries - 1) >>> SEGMENT_SHIFT) + 1;
+        if(segments.length >= needed){
+            return;
+        }
+
+        MappedByteBuffer[] grown = Arrays.copyOf(segments, needed);
+        for(int segment = segments.length; segment < needed; segment++){
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                grown[segment] = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)SEGMENT_ENTRIES * ENTRY_SIZE); // sparse until it is written
+            }
+        }
+
+        segments = grown;
+    }
+
+    synchronized void reserve(int entries) throws IOException {
+        // ::ensureCapacity for callers that append concurrently: room is made for the entries everyone has reserved, so it can't be used up
+        // by someone else in between. whether the entries were appended or not, the caller releases them afterwards
+        ensureCapacity((int)Math.min(Integer.MAX_VALUE, reserved + entries));
+        reserved += entries;
+    }
+
+    synchronized void release(int entries){
+        reserved -= entries;
+    }
+
+    synchronized long append(int slot, long accountId, long timestamp, Operation operation, long amount, long balance){
+        // returns the number of the new entry. ::ensureCapacity has to be called first, the entries of an account are kept in time order even if the clock goes back
+        long entry = count;
+        long previous = head(slot);
+        long index = 0;
+        long jump = entry; // the first entry of an account jumps onto itself
+        if(previous != NONE){
+            timestamp = Math.max(timestamp, timestamp(previous));
+            index = index(previous) + 1;
+            long previousJump = jump(previous);
+            long secondJump = jump(previousJump);
+            jump = index(previous) - index(previousJump) == index(previousJump) - index(secondJump) ? secondJump : previous; // two equal spans merge into one twice as long
+        }
+
+        ByteBuffer segment = segments[(int)(entry >>> SEGMENT_SHIFT)];
+        int base = offsetOf(entry);
+        segment.putLong(base + TIMESTAMP_OFFSET, timestamp);
+        segment.putLong(base + ACCOUNT_OFFSET, accountId);
+        segment.putLong(base + AMOUNT_OFFSET, amount);
+        segment.putLong(base + BALANCE_OFFSET, balance);
+        segment.putLong(base + PREVIOUS_OFFSET, previous);
+        segment.putLong(base + JUMP_OFFSET, jump);
+        segment.putLong(base + INDEX_OFFSET, index);
+        segment.put(base + OPERATION_OFFSET, (byte)operation.ordinal());
+        setHead(slot, entry);
+        count++;
+        return entry;
+    }
+
+    synchronized LedgerEntry[] entries(int slot, long from, long to, int max){
+        // the newest (at most max) entries of the account with from <= timestamp <= to, newest first. the search for the newest one is logarithmic
+        long entry = head(slot);
+        while(entry != NONE && timestamp(entry) > to){
+            long jump = jump(entry);
+            entry = jump != entry && timestamp(jump) > to ? jump : previous(entry); // everything up to the jump entry is newer too
+        }
+
+        LedgerEntry[] found = new LedgerEntry[Math.max(0, Math.min(max, 16))];
+        int size = 0;
+        while(entry != NONE && size < max && timestamp(entry) >= from){
+            if(size == found.length){
+                found = Arrays.copyOf(found, (int)Math.min((long)max, found.length * 2L));
+            }
+
+            ByteBuffer segment = segments[(int)(entry >>> SEGMENT_SHIFT)];
+            int base = offsetOf(entry);
+            found[size++] = new LedgerEntry(segment.getLong(base + TIMESTAMP_OFFSET), Operation.values()[segment.get(base + OPERATION_OFFSET)],
+                    segment.getLong(base + AMOUNT_OFFSET), segment.getLong(base + BALANCE_OFFSET));
+            entry = previous(entry);
+        }
+
+        return size == found.length ? found : Arrays.copyOf(found, size);
+    }
+
+    void forEach(long from, long to, ILedgerVisitor visitor){
+        // the entries [from, to), read without holding the lock since an entry never changes once appended, so many threads can each read a part
+        MappedByteBuffer[] mapped;
+        synchronized (this){
+            if(from < 0 || to > count){
+                throw new IndexOutOfBoundsException("the ledger has " + count + " entries, asked for " + from + " to " + to);
+            }
+
+            mapped = segments;
+        }
+
+        Operation[] operations = Operation.values();
+        for(long entry = from; entry < to; entry++){
+            ByteBuffer segment = mapped[(int)(entry >>> SEGMENT_SHIFT)];
+            int base = offsetOf(entry);
+            visitor.visit(entry, segment.getLong(base + ACCOUNT_OFFSET), operations[segment.get(base + OPERATION_OFFSET)],
+                    segment.getLong(base + AMOUNT_OFFSET), segment.getLong(base + BALANCE_OFFSET));
+        }
+    }
+
+    synchronized LedgerCheckpoint beginCheckpoint(){ // called with the appends stopped, copies what ::completeCheckpoint has to write
+        BitSet dirty = dirtyHeads;
+        dirtyHeads = new BitSet();
+        long[] dirtyValues = new long[dirty.cardinality()];
+        int i = 0;
+        for(int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1)){
+            dirtyValues[i++] = heads[slot];
+        }
+
+        return new LedgerCheckpoint(count, dirty, dirtyValues);
+    }
+
+    long completeCheckpoint(LedgerCheckpoint checkpoint) throws IOException { // returns how many bytes were written
+        long from;
+        MappedByteBuffer[] mapped;
+        synchronized (this){
+            from = forcedCount;
+            mapped = segments;
+        }
+
+        long written = forceEntries(mapped, from, checkpoint.count);
+        synchronized (this){
+            header.putLong(COUNT_OFFSET, Math.max(header.getLong(COUNT_OFFSET), checkpoint.count)); // ::force may have counted further already
+            header.force();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * 1024);
+        int i = 0;
+        int first = checkpoint.dirtyHeads.nextSetBit(0);
+        while(first >= 0){
+            int end = checkpoint.dirtyHeads.nextClearBit(first); // consecutive heads go out in one write
+            for(int slot = first; slot < end; ){
+                buffer.clear();
+                int batchEnd = Math.min(end, slot + buffer.capacity() / Long.BYTES);
+                long position = (long)slot * Long.BYTES;
+                for(; slot < batchEnd; slot++){
+                    buffer.putLong(checkpoint.dirtyValues[i++] + 1);
+                }
+
+                buffer.flip();
+                while(buffer.hasRemaining()){
+                    position += headsChannel.write(buffer, position);
+                }
+            }
+
+            written += (long)(end - first) * Long.BYTES;
+            first = checkpoint.dirtyHeads.nextSetBit(end);
+        }
+
+        headsChannel.force(false);
+        header.putLong(INDEXED_COUNT_OFFSET, checkpoint.count);
+        header.force();
+        synchronized (this){
+            forcedCount = Math.max(forcedCount, checkpoint.count);
+        }
+
+        return written + HEADER_SIZE * 2;
+    }
+
+    void force(long upTo) throws IOException {
+        // makes the entries before upTo durable and counts them in the header without writing any heads, those are rebuilt on open from the entries
+        long from;
+        MappedByteBuffer[] mapped;
+        synchronized (this){
+            upTo = Math.min(upTo, count);
+            from = forcedCount;
+            mapped = segments;
+        }
+
+        if(upTo <= from){
+            return;
+        }
+
+        forceEntries(mapped, from, upTo);
+        synchronized (this){
+            if(header.getLong(COUNT_OFFSET) < upTo){
+                header.putLong(COUNT_OFFSET, upTo);
+                header.force();
+            }
+
+            forcedCount = Math.max(forcedCount, upTo);
+        }
+    }
+
+    synchronized void abortCheckpoint(LedgerCheckpoint checkpoint){ // the next checkpoint writes those heads again
+        dirtyHeads.or(checkpoint.dirtyHeads);
+    }
+
+    synchronized void close() throws IOException { // only once nothing is appended anymore, a last checkpoint should have run before
+        headsChannel.close();
+    }
+
+    private static long forceEntries(MappedByteBuffer[] mapped, long from, long to){ // one force per segment the entries are in, returns the bytes forced
+        long forced = 0;
+        for(long entry = from; entry < to; ){
+            long segmentEnd = Math.min(to, ((entry >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT);
+            mapped[(int)(entry >>> SEGMENT_SHIFT)].force(offsetOf(entry), (int)(segmentEnd - entry) * ENTRY_SIZE);
+            forced += (segmentEnd - entry) * ENTRY_SIZE;
+            entry = segmentEnd;
+        }
+
+        return forced;
+    }
+
+    private void loadHeads() throws IOException {
+        int slots = (int)(headsChannel.size() / Long.BYTES);
+        heads = new long[Math.max(16, slots)];
+        Arrays.fill(heads, NONE);
+        if(slots == 0){
+            return;
+        }
+
+        try (ChannelReader reader = new ChannelReader(FileChannel.open(headsPath(), StandardOpenOption.READ))) { // its own channel, closing the reader closes it
+            for(int slot = 0; slot < slots; slot++){
+                heads[slot] = reader.readLong() - 1;
+            }
+        }
+    }
+
+    private void rebuildHeads(AccountIndex accounts){
+        // the entries that made it to the disk after the heads did, an account's newest entry is the last one of it we see
+        for(long entry = header.getLong(INDEXED_COUNT_OFFSET); entry < count; entry++){
+            int slot = accounts.get(segments[(int)(entry >>> SEGMENT_SHIFT)].getLong(offsetOf(entry) + ACCOUNT_OFFSET));
+            if(slot >= 0){
+                setHead(slot, entry);
+            }
+        }
+    }
+
+    private long head(int slot){
+        return slot < heads.length ? heads[slot] : NONE;
+    }
+
+    private void setHead(int slot, long entry){
+        if(slot >= heads.length){
+            int oldLength = heads.length;
+            heads = Arrays.copyOf(heads, Math.max(slot + 1, heads.length * 2));
+            Arrays.fill(heads, oldLength, heads.length, NONE);
+        }
+
+        heads[slot] = entry;
+        dirtyHeads.set(slot);
+    }
+
+    private long timestamp(long entry){
+        return segments[(int)(entry >>> SEGMENT_SHIFT)].getLong(offsetOf(entry) + TIMESTAMP_OFFSET);
+    }
+
+    private long previous(long entry){
+        return segments[(int)(entry >>> SEGMENT_SHIFT)].getLong(offsetOf(entry) + PREVIOUS_OFFSET);
+    }
+
+    private long jump(long entry){
+        return segments[(int)(entry >>> SEGMENT_SHIFT)].getLong(offsetOf(entry) + JUMP_OFFSET);
+    }
+
+    private long index(long entry){
+        return segments[(int)(entry >>> SEGMENT_SHIFT)].getLong(offsetOf(entry) + INDEX_OFFSET);
+    }
+
+    private Path headsPath(){
+        return headsPath(basePath);
+    }
+
+    private static Path headsPath(Path basePath){
+        return basePath.resolveSibling(basePath.getFileName() + ".heads");
+    }
+
+    private Path segmentPath(int segment){
+        return basePath.resolveSibling(basePath.getFileName() + "." + segment);
+    }
+
+    private static int offsetOf(long entry){
+        return (int)(entry & (SEGMENT_ENTRIES - 1)) * ENTRY_SIZE;
+    }
+}
+
+class LedgerCheckpoint { // what a checkpoint of the ledger has to write, taken while the transactions are stopped
+    final long count;
+    final BitSet dirtyHeads;
+    final long[] dirtyValues; // one per dirty head, in slot order
+
+    LedgerCheckpoint(long count, BitSet dirtyHeads, long[] dirtyValues){
+        this.count = count;
+        this.dirtyHeads = dirtyHeads;
+        this.dirtyValues = dirtyValues;
+    }
+}
+
+class CheckpointScheduler {
+    /*
+    writes the dirty accounts to the store on a background thread, either every intervalMillis or as soon as mutationThreshold transactions
+    have been committed since the last checkpoint, whichever comes first. the swing thread only ever hands work to it
+     */
+    private final ScheduledExecutorService executor;
+    private final long intervalMillis;
+    private final int mutationThreshold;
+    private final AtomicInteger mutationsSinceCheckpoint;
+    private final AtomicBoolean checkpointQueued;
+    private final AtomicLong checkpointCount;
+    private final AtomicLong failureCount;
+    private final AtomicLong totalBytesWritten;
+    private volatile long lastDurationNanos;
+    private volatile long lastBytesWritten;
+
+    CheckpointScheduler(long intervalMillis, int mutationThreshold){
+        if(intervalMillis <= 0 || mutationThreshold <= 0){
+            throw new IllegalArgumentException("checkpoint interval and threshold must be positive numbers");
+        }
+
+        this.intervalMillis = intervalMillis;
+        this.mutationThreshold = mutationThreshold;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        mutationsSinceCheckpoint = new AtomicInteger();
+        checkpointQueued = new AtomicBoolean();
+        checkpointCount = new AtomicLong();
+        failureCount = new AtomicLong();
+        totalBytesWritten = new AtomicLong();
+    }
+
+    void start(){
+        executor.scheduleWithFixedDelay(this::runQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void onMutation(){
+        if(mutationsSinceCheckpoint.incrementAndGet() >= mutationThreshold && checkpointQueued.compareAndSet(false, true)){
+            executor.execute(this::runQuietly);
+        }
+    }
+
+    void shutdown() throws IOException { // runs a last checkpoint and waits for it
+        try {
+            executor.submit(() -> {
+                run();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the last checkpoint");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException)e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    long getCheckpointCount() {
+        return checkpointCount.get();
+    }
+
+    long getFailureCount() {
+        return failureCount.get();
+    }
+
+    long getLastDurationNanos() {
+        return lastDurationNanos;
+    }
+
+    long getLastBytesWritten() {
+        return lastBytesWritten;
+    }
+
+    long getTotalBytesWritten() {
+        return totalBytesWritten.get();
+    }
+
+    private void runQuietly(){
+        try {
+            run();
+        } catch (IOException | RuntimeException e) {
+            failureCount.incrementAndGet();
+            System.err.println("checkpoint failed, the journal still holds the changes: " + e); // nothing is lost, the next checkpoint will try again
+        }
+    }
+
+    private void run() throws IOException {
+        checkpointQueued.set(false);
+        mutationsSinceCheckpoint.set(0);
+        long start = System.nanoTime();
+        long bytes = AccountManager.checkpoint();
+        if(bytes > 0){
+            lastDurationNanos = System.nanoTime() - start;
+            lastBytesWritten = bytes;
+            totalBytesWritten.addAndGet(bytes);
+            checkpointCount.incrementAndGet();
+        }
+    }
+}
+
+class IoRateLimiter { // paces the i/o of one background thread to an average of bytesPerSecond, 0 for no limit
+    private final double nanosPerByte;
+    private long next; // System.nanoTime() at which the bytes acquired so far have been paid for
+
+    IoRateLimiter(long bytesPerSecond){
+        if(bytesPerSecond < 0){
+            throw new IllegalArgumentException("the rate can't be a negative number");
+        }
+
+        nanosPerByte = bytesPerSecond == 0 ? 0 : 1e9 / bytesPerSecond;
+        next = System.nanoTime();
+    }
+
+    void acquire(long bytes) throws InterruptedIOException { // waits until the bytes acquired before these have been paid for, time spent idle isn't saved up
+        if(nanosPerByte == 0){
+            return;
+        }
+
+        long now = System.nanoTime();
+        long start = Math.max(next, now);
+        next = start + (long)(bytes * nanosPerByte);
+        long wait;
+        while((wait = start - System.nanoTime()) > 0){
+            LockSupport.parkNanos(wait);
+            if(Thread.interrupted()){
+                throw new InterruptedIOException("interrupted while waiting for i/o budget");
+            }
+        }
+    }
+}
+
+class JournalCompactor {
+    /*
+    keeps the journal small when checkpoints are far apart: the journal rolls over every few MB and this merges the sealed segments on its own thread
+    (see TransactionJournal::compact), reading and writing at most bytesPerSecond so it doesn't take the disk away from the transactions.
+    a checkpoint deletes the sealed segments anyway, the compactor only matters between two of them
+     */
+    private final ScheduledExecutorService executor;
+    private final TransactionJournal journal;
+    private final TransactionLedger ledger; // null if there is none
+    private final IoRateLimiter limiter;
+    private final long intervalMillis;
+    private final AtomicLong compactionCount;
+    private final AtomicLong failureCount;
+    private final AtomicLong reclaimedBytes;
+    private long lastMerged; // segment the last compaction left behind, merging it on its own again would change nothing
+
+    JournalCompactor(TransactionJournal journal, TransactionLedger ledger, long intervalMillis, long bytesPerSecond){
+        if(intervalMillis <= 0){
+            throw new IllegalArgumentException("compaction interval must be a positive number");
+        }
+
+        this.journal = journal;
+        this.ledger = ledger;
+        this.intervalMillis = intervalMillis;
+        limiter = new IoRateLimiter(bytesPerSecond);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "compactor");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        compactionCount = new AtomicLong();
+        failureCount = new AtomicLong();
+        reclaimedBytes = new AtomicLong();
+        lastMerged = -1;
+    }
+
+    void start(){
+        executor.scheduleWithFixedDelay(this::runQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown(){ // stops a running compaction where it is, what it leaves behind is harmless
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    long getFailureCount() {
+        return failureCount.get();
+    }
+
+    long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    private void runQuietly(){
+        try {
+            run();
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            // shut down in the middle of it
+        } catch (IOException | RuntimeException e) {
+            failureCount.incrementAndGet();
+            System.err.println("journal compaction failed, the segments stay as they were: " + e);
+        }
+    }
+
+    private void run() throws IOException {
+        long[] sealed = journal.sealedSegments();
+        if(sealed.length == 0 || sealed.length == 1 && sealed[0] == lastMerged){
+            return;
+        }
+
+        long start = System.nanoTime();
+        long reclaimed = journal.compact(sealed, ledger, limiter);
+        lastMerged = sealed[sealed.length - 1];
+        AtmMetrics.COMPACTION_NANOS.record(System.nanoTime() - start);
+        reclaimedBytes.addAndGet(reclaimed);
+        compactionCount.incrementAndGet();
+    }
+}
+
+class ChannelReader implements Closeable { // reads primitives out of a channel in big chunks, a field is never split by a short read
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer; // direct so the channel reads straight into it without an intermediate copy
+
+    ChannelReader(FileChannel channel){
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        buffer.limit(0); // nothing buffered yet
+    }
+
+    int readInt() throws IOException {
+        require(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    long readLong() throws IOException {
+        require(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    double readDouble() throws IOException {
+        require(Double.BYTES);
+        return buffer.getDouble();
+    }
+
+    byte readByte() throws IOException {
+        require(1);
+        return buffer.get();
+    }
+
+    void readFully(byte[] dst, int length) throws IOException { // length can be bigger than the chunk size
+        int copied = 0;
+        while(copied < length){
+            require(1);
+            int n = Math.min(buffer.remaining(), length - copied);
+            buffer.get(dst, copied, n);
+            copied += n;
+        }
+    }
+
+    private void require(int bytes) throws IOException { // keeps reading until at least that many bytes are buffered
+        if(buffer.remaining() >= bytes){
+            return;
+        }
+
+        buffer.compact();
+        while(buffer.position() < bytes){
+            if(channel.read(buffer) < 0){ // a read can return less than what we asked for, only -1 means we are done
+                throw new EOFException("unexpected end of file");
+            }
+        }
+
+        buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+class MappedAccountStore {
+    /*
+    accounts.dat is a 64 bytes header followed by one fixed width slot per account, the names having variable lengths they live in a separate
+    append-only heap (accounts.names) that the slots point into. since every slot has the same size, the slot of an account is found with a multiplication
+    and its balance is updated with a single 8 bytes write into the mapped file instead of rewriting everything that comes after it.
+    header: [magic (4)][version (4)][account count (4)][slot capacity (4)][reserved]
+    slot:   [id (8)][balance in cents (8)][name offset in the heap (8)][name length (4)][pin hash iterations (4)][salt (16)][pin hash (16)]
+            [failed logins in a row (4)][reserved (4)][time of the last failed login in epoch millis (8)]
+    version 1 stored the balance as a double, ::balance reads it as cents and it is copied into a current store like the other old versions.
+    versions 1 and 2 had 32 bytes slots holding the pin itself: [id (8)][balance (8)][name offset (8)][pin (4)][name length (4)].
+    version 3 had 64 bytes slots, the same as today's without the failed logins.
+    older stores can still be opened to be read, AccountManager then copies them into a current store with ::convertTo
+     */
+    static final int VERSION = 4;
+    private static final int MAGIC = 0x41544D53; // "ATMS"
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 80;
+    private static final int COUNT_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int ID_OFFSET = 0;
+    private static final int BALANCE_OFFSET = 8;
+    private static final int NAME_OFFSET_OFFSET = 16;
+    private static final int NAME_LENGTH_OFFSET = 24;
+    private static final int ITERATIONS_OFFSET = 28;
+    private static final int SALT_OFFSET = 32;
+    private static final int HASH_OFFSET = SALT_OFFSET + PinHash.SALT_LENGTH;
+    private static final int FAILED_LOGINS_OFFSET = 64;
+    private static final int LAST_FAILED_LOGIN_OFFSET = 72;
+    private static final int HASHED_PIN_SLOT_SIZE = 64; // version 3
+    private static final int PLAIN_PIN_SLOT_SIZE = 32; // versions 1 and 2
+    private static final int PLAIN_PIN_OFFSET = 24;
+    private static final int PLAIN_PIN_NAME_LENGTH_OFFSET = 28;
+
+    private final FileChannel slotsChannel;
+    private final FileChannel namesChannel;
+    private final ByteBuffer pendingNames; // names appended but not yet written to the heap, batched so that a bulk load doesn't make a write per account
+    private long namesSize; // size of the heap including the pending names
+    private volatile MappedByteBuffer slots; // replaced when the store grows
+    private int size;
+    private int capacity;
+    private int version;
+    private int slotSize; // depends on the version
+    private int nameLengthOffset; // depends on the version
+    private int maxCapacity; // a single mapping can't go past 2GB
+
+    private MappedAccountStore(FileChannel slotsChannel, FileChannel namesChannel) throws IOException {
+        this.slotsChannel = slotsChannel;
+        this.namesChannel = namesChannel;
+        pendingNames = ByteBuffer.allocate(1 << 16);
+        namesSize = namesChannel.size();
+        if(slotsChannel.size() == 0){ // brand new store
+            setVersion(VERSION);
+            map(1024);
+            slots.putInt(0, MAGIC);
+            slots.putInt(4, VERSION);
+            slots.putInt(COUNT_OFFSET, 0);
+            size = 0;
+        }
+        else{
+            slots = slotsChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if(slots.getInt(0) != MAGIC){
+                throw new IOException("not an account store");
+            }
+
+            int version = slots.getInt(4);
+            if(version < 1 || version > VERSION){
+                throw new IOException("unsupported account store version " + version);
+            }
+
+            setVersion(version);
+            size = slots.getInt(COUNT_OFFSET);
+            map(slots.getInt(CAPACITY_OFFSET));
+
+            while(size > 0 && nameEnd(size - 1) > namesSize){ // the slot made it to the disk but its name didn't, the journal still has those accounts
+                size--;
+            }
+
+            slots.putInt(COUNT_OFFSET, size);
+        }
+    }
+
+    static MappedAccountStore open(String slotsPath, String namesPath) throws IOException { // creates the files if they don't exist
+        FileChannel slotsChannel = FileChannel.open(Paths.get(slotsPath), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel namesChannel = FileChannel.open(Paths.get(namesPath), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new MappedAccountStore(slotsChannel, namesChannel);
+        } catch (IOException e) {
+            slotsChannel.close();
+            namesChannel.close();
+            throw e;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    long id(int slot){
+        return slots.getLong(offsetOf(slot) + ID_OFFSET);
+    }
+
+    long balance(int slot){ // in cents
+        int offset = offsetOf(slot) + BALANCE_OFFSET;
+        return version == 1 ? Money.fromDouble(slots.getDouble(offset)) : slots.getLong(offset);
+    }
+
+    int plainPin(int slot){ // only stores from before version 3 have them
+        if(version >= 3){
+            throw new IllegalStateException("this store only holds pin hashes");
+        }
+
+        return slots.getInt(offsetOf(slot) + PLAIN_PIN_OFFSET);
+    }
+
+    PinHash credential(int slot){
+        if(version < 3){
+            throw new IllegalStateException("this store needs to be converted before it has pin hashes");
+        }
+
+        int base = offsetOf(slot);
+        byte[] salt = new byte[PinHash.SALT_LENGTH];
+        byte[] hash = new byte[PinHash.HASH_LENGTH];
+        slots.get(base + SALT_OFFSET, salt);
+        slots.get(base + HASH_OFFSET, hash);
+        return new PinHash(slots.getInt(base + ITERATIONS_OFFSET), salt, hash);
+    }
+
+    synchronized String name(int slot) throws IOException {
+        int base = offsetOf(slot);
+        ByteBuffer name = ByteBuffer.allocate(slots.getInt(base + nameLengthOffset));
+        long position = slots.getLong(base + NAME_OFFSET_OFFSET);
+        if(position + name.capacity() > namesSize - pendingNames.position()){
+            flushNames(); // the name is still sitting in our buffer
+        }
+
+        while(name.hasRemaining()){
+            if(namesChannel.read(name, position + name.position()) < 0){
+                throw new EOFException("name heap is shorter than the account store expects");
+            }
+        }
+
+        return new String(name.array(), StandardCharsets.UTF_8);
+    }
+
+    void setBalance(int slot, long balance){ // in place, it reaches the disk whenever the OS writes the page back or on ::force
+        slots.putLong(offsetOf(slot) + BALANCE_OFFSET, balance);
+    }
+
+    int failedLogins(int slot){
+        return slots.getInt(offsetOf(slot) + FAILED_LOGINS_OFFSET);
+    }
+
+    long lastFailedLogin(int slot){ // epoch millis
+        return slots.getLong(offsetOf(slot) + LAST_FAILED_LOGIN_OFFSET);
+    }
+
+    void setFailedLogins(int slot, int count, long lastFailedLogin){ // in place like ::setBalance
+        int base = offsetOf(slot);
+        slots.putLong(base + LAST_FAILED_LOGIN_OFFSET, lastFailedLogin);
+        slots.putInt(base + FAILED_LOGINS_OFFSET, count);
+    }
+
+    synchronized int append(long id, String name, PinHash credential, long balance) throws IOException { // returns the slot of the new account
+        if(version < VERSION){
+            throw new IOException("accounts can't be added to a store from before version " + VERSION + ", it has to be converted first");
+        }
+
+        if(size == capacity){
+            if(capacity == maxCapacity){
+                throw new IOException("account store is full");
+            }
+
+            map((int)Math.min((long)capacity * 2, maxCapacity));
+        }
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long nameOffset = namesSize;
+        if(nameBytes.length > pendingNames.remaining()){
+            flushNames();
+        }
+
+        if(nameBytes.length > pendingNames.remaining()){ // too big to be batched at all
+            writeFully(ByteBuffer.wrap(nameBytes), nameOffset);
+        }
+        else{
+            pendingNames.put(nameBytes);
+        }
+
+        namesSize += nameBytes.length;
+
+        int slot = size;
+        writeSlot(slots, offsetOf(slot), id, balance, nameOffset, nameBytes.length, credential);
+        slots.putInt(COUNT_OFFSET, ++size); // the count is written last so a slot is never visible before it is complete
+        return slot;
+    }
+
+    void convertTo(String slotsPath, PinHash[] credentials) throws IOException {
+        /*
+        writes a current copy of this (older) store to slotsPath. a store from before version 3 needs credentials[slot] in place of the pin of every
+        slot, a later one already has them (credentials is then null). the copy points into the same name heap, so moving it over the old
+        accounts.dat is all it takes to switch: a crash before the move leaves the old store as it was
+         */
+        if(version < 3 ? credentials == null || credentials.length != size : credentials != null){
+            throw new IllegalArgumentException("credentials are needed for every account of a store from before version 3, and only then");
+        }
+
+        flushNames();
+        try (FileChannel channel = FileChannel.open(Paths.get(slotsPath), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int newCapacity = Math.max(1024, size);
+            MappedByteBuffer copy = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)newCapacity * SLOT_SIZE);
+            copy.putInt(0, MAGIC);
+            copy.putInt(4, VERSION);
+            copy.putInt(CAPACITY_OFFSET, newCapacity);
+            for(int slot = 0; slot < size; slot++){
+                int base = offsetOf(slot);
+                writeSlot(copy, HEADER_SIZE + slot * SLOT_SIZE, slots.getLong(base + ID_OFFSET), balance(slot),
+                        slots.getLong(base + NAME_OFFSET_OFFSET), slots.getInt(base + nameLengthOffset), credentials != null ? credentials[slot] : credential(slot));
+            }
+
+            copy.putInt(COUNT_OFFSET, size);
+            copy.force();
+        }
+    }
+
+    void force() throws IOException {
+        forceHeap();
+        slots.force();
+    }
+
+    synchronized long forceHeap() throws IOException { // the names and the header, has to be done before forcing the slots of new accounts
+        long written = flushNames();
+        namesChannel.force(false); // names first, a slot must never point past the end of the heap on disk
+        slots.force(0, HEADER_SIZE);
+        return written + HEADER_SIZE; // how many bytes had to be written
+    }
+
+    long force(int firstSlot, int slotCount){ // only forces the given slots, returns how many bytes that covers
+        slots.force(offsetOf(firstSlot), slotCount * slotSize);
+        return (long)slotCount * slotSize;
+    }
+
+    synchronized void close() throws IOException {
+        force();
+        slotsChannel.close();
+        namesChannel.close();
+    }
+
+    private long flushNames() throws IOException {
+        pendingNames.flip();
+        int written = pendingNames.remaining();
+        writeFully(pendingNames, namesSize - written);
+        pendingNames.clear();
+        return written;
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        while(src.hasRemaining()){
+            position += namesChannel.write(src, position);
+        }
+    }
+
+    private static void writeSlot(ByteBuffer target, int base, long id, long balance, long nameOffset, int nameLength, PinHash credential){
+        target.putLong(base + ID_OFFSET, id);
+        target.putLong(base + BALANCE_OFFSET, balance);
+        target.putLong(base + NAME_OFFSET_OFFSET, nameOffset);
+        target.putInt(base + NAME_LENGTH_OFFSET, nameLength);
+        target.putInt(base + ITERATIONS_OFFSET, credential.getIterations());
+        target.put(base + SALT_OFFSET, credential.getSalt());
+        target.put(base + HASH_OFFSET, credential.getHash());
+        target.putInt(base + FAILED_LOGINS_OFFSET, 0);
+        target.putLong(base + LAST_FAILED_LOGIN_OFFSET, 0);
+    }
+
+    private void setVersion(int version){
+        this.version = version;
+        slotSize = version < 3 ? PLAIN_PIN_SLOT_SIZE : version == 3 ? HASHED_PIN_SLOT_SIZE : SLOT_SIZE;
+        nameLengthOffset = version < 3 ? PLAIN_PIN_NAME_LENGTH_OFFSET : NAME_LENGTH_OFFSET;
+        maxCapacity = (Integer.MAX_VALUE - HEADER_SIZE) / slotSize;
+    }
+
+    private void map(int newCapacity) throws IOException {
+        slots = slotsChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)newCapacity * slotSize); // grows the file if needed
+        slots.putInt(CAPACITY_OFFSET, newCapacity);
+        capacity = newCapacity;
+    }
+
+    private long nameEnd(int slot){
+        int base = offsetOf(slot);
+        return slots.getLong(base + NAME_OFFSET_OFFSET) + slots.getInt(base + nameLengthOffset);
+    }
+
+    private int offsetOf(int slot){
+        return HEADER_SIZE + slot * slotSize;
+    }
+}
+
+interface ILegacyAccountVisitor { // receives the accounts of an accounts.bin in the order they were saved
+    void visit(long id, String name, int pin, long balance) throws IOException; // balance in cents
+}
+
+class AccountManager {
+    private static final String DATA_DIR = System.getProperty("atm.data.dir", "data"); // lets the benchmarks work on their own copy of the accounts
+    private static final String LEGACY_ACCOUNT_FILE_LOC = Paths.get(DATA_DIR, "accounts.bin").toString(); // variable length format the accounts used to be saved in, only read once to migrate it
+    private static final String STORE_FILE_LOC = Paths.get(DATA_DIR, "accounts.dat").toString();
+    private static final String NAMES_FILE_LOC = Paths.get(DATA_DIR, "accounts.names").toString();
+    private static final String JOURNAL_FILE_LOC = Paths.get(DATA_DIR, "accounts.journal").toString();
+    private static final String LEDGER_FILE_LOC = Paths.get(DATA_DIR, "accounts.ledger").toString();
+    private static final String SETTLEMENT_FILE_LOC = Paths.get(DATA_DIR, "accounts.settlement").toString(); // balances as the last settlement left them
+    private static final String SETTLEMENT_REPORT_FILE_LOC = Paths.get(DATA_DIR, "accounts.settlement.txt").toString(); // what the last settlement found
+    private static MappedAccountStore store; // stored accounts, one slot per account
+    private static AccountIndex accountIndex; // id -> slot inside the store
+    private static UserAccount[] loadedAccounts; // accounts that have been read from the store so far by slot, an account is only deserialized once someone logs into it
+    private static TransactionJournal journal; // changes that have not been forced to the store yet (null if it couldn't be opened)
+    private static TransactionLedger ledger; // history of every transaction (null if it couldn't be opened)
+    private static BitSet dirtySlots; // slots whose account changed since the last checkpoint, a checkpoint only touches those
+    private static CheckpointScheduler checkpoints; // saves the dirty slots in the background
+    private static JournalCompactor compactor; // merges the sealed journal segments between checkpoints (null without a journal)
+    private static PinVerifier pinVerifier; // checks and hashes pins off the calling thread, remembers the recent successful checks
+    private static LoginThrottle loginThrottle; // wrong pins in a row per account, also kept in the store so a restart doesn't reset them
+    private static final long NOT_LOADED = Long.MIN_VALUE; // balance placeholder for a dirty account that was never deserialized
+    private static volatile CompletableFuture<Void> loading; // set when the accounts load in the background, completing it publishes them
+    private static final AccountLocks accountLocks = AccountLocks.fromProperties(); // a balance changes and gets its ledger entry and journal record under the lock of its slot
+    private static final ReentrantLock stateLock = new ReentrantLock(); // not a monitor since the journal is written under it (see TransactionJournal), guards dirtySlots, loadedAccounts, keeps the ledger entries in journal order and a journal record and its dirty bit on the same side of a checkpoint
+
+    private AccountManager() throws IOException {
+        /*
+        nothing in here talks to the user: what can't be worked around is thrown to whoever initializes the accounts (a window, the server or a
+        benchmark) and what can is written to stderr, the accounts keep working without a ledger or a journal
+         */
+        dirtySlots = new BitSet();
+        loadedAccounts = new UserAccount[16];
+        pinVerifier = PinVerifier.fromProperties();
+        loginThrottle = LoginThrottle.fromProperties();
+        try {
+            loadAccounts();
+        } catch (IOException e) {
+            throw new IOException("failed to load the accounts, " + STORE_FILE_LOC + " might have been deleted or corrupted: " + e.getMessage(), e); // there is nowhere to read or write accounts from
+        }
+
+        try {
+            ledger = TransactionLedger.open(LEDGER_FILE_LOC, accountIndex); // before the journal, which gives it back the transactions it lost
+        } catch (IOException e) {
+            System.err.println("could not open the transaction ledger, no transaction history will be kept: " + e);
+        }
+
+        try {
+            journal = TransactionJournal.openAndReplay(JOURNAL_FILE_LOC, Long.getLong("atm.journal.segment.size", 4 << 20), new IJournalReplay() { // replay the session(s) that didn't make it into the store on top of it
+                @Override
+                public void onAccountCreated(long id, String name, PinHash credential) {
+                    if(!accountIndex.contains(id)){
+                        int slot;
+                        try {
+                            slot = store.append(id, name, credential, 0);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        accountIndex.put(id, slot);
+                        dirtySlots.set(slot);
+                    }
+                }
+
+                @Override
+                public void onBalanceChanged(long id, long balance) {
+                    int slot = accountIndex.get(id);
+                    if(slot >= 0){
+                        store.setBalance(slot, balance);
+                        dirtySlots.set(slot);
+                    }
+                }
+
+                @Override
+                public void onTransaction(long id, long entry, long timestamp, Operation operation, long amount, long balance) {
+                    int slot = accountIndex.get(id);
+                    if(slot < 0){
+                        return;
+                    }
+
+                    store.setBalance(slot, balance);
+                    dirtySlots.set(slot);
+                    if(ledger != null && entry >= ledger.size()){ // the entry wasn't forced before the crash
+                        try {
+                            ledger.ensureCapacity(1); // nothing else appends while the journal replays
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+
+                        ledger.append(slot, id, timestamp, operation, amount, balance);
+                    }
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("could not open the transaction journal, transactions will only be saved on exit: " + e);
+        }
+
+        checkpoints = new CheckpointScheduler(Long.getLong("atm.checkpoint.interval", 30000), Integer.getInteger("atm.checkpoint.mutations", 1000));
+        checkpoints.start();
+        if(journal != null){
+            compactor = new JournalCompactor(journal, ledger, Long.getLong("atm.compaction.interval", 10000), Long.getLong("atm.compaction.rate", 8 << 20));
+            compactor.start();
+        }
+    }
+
+    static void initializeAccounts() throws IOException {
+        if(accountIndex != null){
+            throw new IllegalStateException("accounts have already been initialized"); // initialize should only be called once
+        }
+
+        StartupTimeline.begin(StartupPhase.ACCOUNTS);
+        new AccountManager();
+        AtmMetrics.export();
+        StartupTimeline.end(StartupPhase.ACCOUNTS);
+    }
+
+    static CompletableFuture<Void> initializeAccountsInBackground(){ // so the window can show up while a big store loads, whatever needs the accounts waits for them
+        loading = CompletableFuture.runAsync(() -> {
+            try {
+                initializeAccounts();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, r -> new Thread(r, "account-loader").start());
+        return loading; // completes exceptionally if they couldn't be loaded
+    }
+
+    private static void awaitAccounts(){
+        CompletableFuture<Void> pending = loading;
+        if(pending == null || pending.isDone() && !pending.isCompletedExceptionally()){
+            return;
+        }
+
+        try {
+            pending.join(); // a login that comes in while the accounts are still loading waits for them
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    static AccountFetchState getUserAccount(long id, String pin){ // we get the account by the id and pin
+         awaitAccounts();
+         long start = System.nanoTime();
+         AccountFetchState state = findUserAccount(id, pin);
+         AtmMetrics.LOOKUP_NANOS.record(System.nanoTime() - start);
+         AtmMetrics.LOGINS[state.getState().ordinal()].increment();
+         return state;
+    }
+
+    private static AccountFetchState findUserAccount(long id, String pin){
+         int slot = accountIndex.get(id); // acc ids are unique so the index gives us at most one account
+         if(slot < 0){
+             return new AccountFetchState(LoginState.ACC_NOT_EXIST, null);
+         }
+
+         long now = System.currentTimeMillis();
+         long reserved = loginThrottle.reserve(id, now); // counted as a wrong pin until we know better
+         if(reserved > 0){ // refused before the pin is hashed, guessing costs us nothing while the account is locked
+             return new AccountFetchState(LoginState.LOCKED_OUT, null, reserved);
+         }
+
+         int failedBefore = (int)-reserved;
+         UserAccount user = account(slot);
+         if(!pinVerifier.verify(id, user.getOwner().getCredential(), pin)){ // we then check the pin
+             setFailedLogins(slot, failedBefore + 1, now); // the throttle counted it already
+             return new AccountFetchState(LoginState.WRONG_PIN, null); // the pin is wrong
+         }
+
+         loginThrottle.clear(id);
+         if(failedBefore > 0){ // the store only needs a write if it had failures to forget
+             setFailedLogins(slot, 0, 0);
+         }
+
+         return new AccountFetchState(LoginState.SUCCESS, user); // construct our object with the state and user account
+    }
+
+    private static void notJournaled(long id, IOException e){
+        System.err.println("could not record account " + id + " in the journal, it will only be saved on exit: " + e); // it is in the store already, the next checkpoint forces it
+    }
+
+    private static void setFailedLogins(int slot, int count, long lastFailedLogin){
+        // written straight into the store and left for the next checkpoint to force, a crash can only forget the last few failures
+        store.setFailedLogins(slot, count, lastFailedLogin);
+        stateLock.lock();
+        try {
+            dirtySlots.set(slot);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    static long createNewAccount(String name, String pin){
+        awaitAccounts();
+        PinHash credential = pinVerifier.hash(pin); // only the hash is ever written anywhere, hashed before we take the lock
+        long id;
+        long position = -1;
+        stateLock.lock();
+        try {
+            // the id is checked and put into the index in the same critical section, two accounts created at once can't both take the same free id
+            do {
+                id = UserAccount.randomId();
+            } while(accountIndex.contains(id)); // ids are random so we make sure we don't hand out one that is already taken
+
+            int slot;
+            try {
+                slot = store.append(id, name, credential, 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            accountIndex.put(id, slot);
+            dirtySlots.set(slot);
+            if(journal != null){
+                try {
+                    position = journal.logAccountCreated(id, name, credential);
+                } catch (IOException e) {
+                    notJournaled(id, e);
+                }
+            }
+        } finally {
+            stateLock.unlock();
+        }
+
+        if(position >= 0){
+            try {
+                journal.sync(position);
+            } catch (IOException e) {
+                notJournaled(id, e);
+            }
+        }
+
+        AtmMetrics.ACCOUNTS_CREATED.increment();
+        checkpoints.onMutation();
+        return id;
+    }
+
+    static boolean withdraw(UserAccount acc, long amount) throws IOException { // false (and nothing changes) if there isn't enough money, returns once the transaction is durable
+        return transact(acc, Operation.WITHDRAW, amount);
+    }
+
+    static void deposit(UserAccount acc, long amount) throws IOException { // throws ArithmeticException (and nothing changes) if the balance would overflow
+        transact(acc, Operation.DEPOSIT, amount);
+    }
+
+    private static boolean transact(UserAccount acc, Operation operation, long amount) throws IOException {
+        /*
+        the balance changes under the lock of its account, which is held until the ledger entry and the journal record are appended so that they get
+        the transactions of an account in the order they happened, each with the balance it left. transactions of other accounts go on in parallel,
+        they only meet for the append itself, under the state lock, which keeps the ledger numbers in journal order and a record on the same side of a
+        checkpoint as its dirty bit. the fsync stays outside of every lock
+         */
+        int slot = accountIndex.get(acc.getId());
+        long position = -1;
+        accountLocks.lock(slot);
+        try {
+            if(ledger != null){
+                ledger.reserve(1); // the only part of appending that can fail, done before anything changes
+            }
+
+            try {
+                if(operation == Operation.WITHDRAW){
+                    if(!acc.withdraw(amount)){
+                        return false;
+                    }
+                }
+                else{
+                    acc.deposit(amount);
+                }
+
+                long balance = acc.getBalance();
+                long timestamp = System.currentTimeMillis();
+                stateLock.lock();
+                try {
+                    dirtySlots.set(slot); // the store is only updated by a checkpoint, the journal is what makes the change durable until then
+                    long entry = ledger != null ? ledger.append(slot, acc.getId(), timestamp, operation, amount, balance) : -1;
+                    if(journal != null){
+                        position = journal.logTransaction(acc.getId(), entry, timestamp, operation, amount, balance);
+                    }
+                } finally {
+                    stateLock.unlock();
+                }
+            } finally {
+                if(ledger != null){
+                    ledger.release(1);
+                }
+            }
+        } finally {
+            accountLocks.unlock(slot);
+        }
+
+        if(position >= 0){
+            long start = System.nanoTime();
+            journal.sync(position); // outside of the locks so that neither the account nor a checkpoint ever waits on an fsync of the journal
+            AtmMetrics.JOURNAL_SYNC_NANOS.record(System.nanoTime() - start);
+        }
+
+        checkpoints.onMutation();
+        return true;
+    }
+
+    static TransactionResult transfer(UserAccount from, long toId, long amount) throws IOException { // returns once the transfer is durable
+        /*
+        both accounts are locked (see AccountLocks::lock for the order, which is what keeps two transfers going opposite ways from deadlocking) and
+        both sides change before either is unlocked, so nobody ever sees the money on both sides or on neither. one journal record holds both sides
+        so that a crash replays the whole transfer or none of it
+         */
+        int toSlot = accountIndex.get(toId);
+        if(toSlot < 0 || toId == from.getId()){
+            return TransactionResult.INVALID_TARGET;
+        }
+
+        int fromSlot = accountIndex.get(from.getId());
+        UserAccount to = account(toSlot);
+        long position = -1;
+        accountLocks.lock(fromSlot, toSlot);
+        try {
+            if(ledger != null){
+                ledger.reserve(2);
+            }
+
+            try {
+                if(!from.withdraw(amount)){
+                    return TransactionResult.INSUFFICIENT_FUNDS;
+                }
+
+                try {
+                    to.deposit(amount);
+                } catch (ArithmeticException e) {
+                    from.deposit(amount); // can't overflow, the money was there a moment ago
+                    return TransactionResult.INVALID_AMOUNT;
+                }
+
+                long fromBalance = from.getBalance();
+                long toBalance = to.getBalance();
+                long timestamp = System.currentTimeMillis();
+                stateLock.lock();
+                try {
+                    dirtySlots.set(fromSlot);
+                    dirtySlots.set(toSlot);
+                    long fromEntry = -1;
+                    long toEntry = -1;
+                    if(ledger != null){
+                        fromEntry = ledger.append(fromSlot, from.getId(), timestamp, Operation.TRANSFER, -amount, fromBalance);
+                        toEntry = ledger.append(toSlot, toId, timestamp, Operation.TRANSFER, amount, toBalance);
+                    }
+
+                    if(journal != null){
+                        position = journal.logTransfer(from.getId(), toId, fromEntry, toEntry, timestamp, amount, fromBalance, toBalance);
+                    }
+                } finally {
+                    stateLock.unlock();
+                }
+            } finally {
+                if(ledger != null){
+                    ledger.release(2);
+                }
+            }
+        } finally {
+            accountLocks.unlock(fromSlot, toSlot);
+        }
+
+        if(position >= 0){
+            long start = System.nanoTime();
+            journal.sync(position);
+            AtmMetrics.JOURNAL_SYNC_NANOS.record(System.nanoTime() - start);
+        }
+
+        checkpoints.onMutation();
+        return TransactionResult.SUCCESS;
+    }
+
+    static LedgerEntry[] getTransactions(long id, long from, long to, int max){ // newest first, from and to are epoch millis (inclusive)
+        int slot = accountIndex.get(id);
+        if(ledger == null || slot < 0 || max <= 0){
+            return new LedgerEntry[0];
+        }
+
+        long start = System.nanoTime();
+        LedgerEntry[] entries = ledger.entries(slot, from, to, max);
+        AtmMetrics.LEDGER_QUERY_NANOS.record(System.nanoTime() - start);
+        return entries;
+    }
+
+    static long getLedgerSize() { // 0 until the ledger is open
+        TransactionLedger opened = ledger;
+        return opened == null ? 0 : opened.size();
+    }
+
+    static SettlementReport settle() throws IOException {
+        /*
+        settles the ledger up to now against the balances (see BatchSettlement), writes the report and then the new snapshot. the cut is taken with
+        every account locked, a balance only changes together with its ledger entry under the lock of its account: the number of entries and a copy
+        of every balance. that copy is O(accounts), the ledger itself is read without the locks while the transactions go on past the cut
+         */
+        if(ledger == null){
+            throw new IOException("there is no ledger to settle");
+        }
+
+        long ledgerEntries;
+        long[] ids;
+        long[] balances;
+        accountLocks.lockAll();
+        try {
+            stateLock.lock();
+            try {
+                ledgerEntries = ledger.size();
+                ids = new long[store.size()];
+                balances = new long[ids.length];
+                for(int slot = 0; slot < ids.length; slot++){
+                    UserAccount acc = slot < loadedAccounts.length ? loadedAccounts[slot] : null;
+                    ids[slot] = store.id(slot);
+                    balances[slot] = acc != null ? acc.getBalance() : store.balance(slot); // the store has the balance of an account that was never loaded
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        } finally {
+            accountLocks.unlockAll();
+        }
+
+        SettlementSnapshot previous = SettlementSnapshot.read(SETTLEMENT_FILE_LOC);
+        ForkJoinPool pool = new ForkJoinPool(Integer.getInteger("atm.settlement.threads", Runtime.getRuntime().availableProcessors()));
+        SettlementReport report;
+        try {
+            report = BatchSettlement.settle(ledger, ledgerEntries, ids, balances, previous, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        try (PrintStream out = new PrintStream(new FileOutputStream(SETTLEMENT_REPORT_FILE_LOC), false, StandardCharsets.UTF_8)) {
+            report.print(out);
+        }
+
+        report.getSnapshot().write(SETTLEMENT_FILE_LOC); // last, a crash before it just settles the same entries again
+        AtmMetrics.settlementNanos = report.getElapsedNanos();
+        AtmMetrics.settlementMismatches = report.getMismatchCount();
+        return report;
+    }
+
+    static JournalCompactor getCompactor() {
+        return compactor;
+    }
+
+    static double getJournalSpaceAmplification() throws IOException {
+        // bytes of journal on the disk over what it would take with one record per account changed since the last checkpoint, 1 when it is empty
+        TransactionJournal opened = journal;
+        if(opened == null){
+            return 1;
+        }
+
+        int changed;
+        stateLock.lock();
+        try {
+            changed = dirtySlots.cardinality();
+        } finally {
+            stateLock.unlock();
+        }
+
+        return Math.max(1, (double)opened.diskSize() / Math.max(1, (long)changed * TransactionJournal.BALANCE_RECORD_SIZE));
+    }
+
+    static CheckpointScheduler getCheckpoints() {
+        return checkpoints;
+    }
+
+    static long getAccountCount() { // 0 until the accounts are loaded
+        AccountIndex index = accountIndex;
+        return index == null ? 0 : index.size();
+    }
+
+    static void saveAllToFile() throws IOException { // called upon exiting to make sure the store is on the disk
+        awaitAccounts(); // closing the window while they load still saves what the journal replayed
+        if(compactor != null){
+            compactor.shutdown(); // the last checkpoint deletes the segments it would merge
+        }
+
+        try {
+            checkpoints.shutdown(); // runs one last checkpoint
+        } catch (IOException e) {
+            throw new IOException("failed to save the accounts (the journal still holds the changes): " + e.getMessage(), e);
+        }
+    }
+
+    static long checkpoint() throws IOException { // only called from the checkpoint thread, returns how many bytes were written
+        /*
+        the dirty set is swapped for an empty one and the balances are copied while holding the lock, which takes O(changes). the journal rolls over at
+        the same time so the sealed segments hold exactly what this checkpoint writes, the sealed segment is only forced once the lock is released.
+        a balance changes under the lock of its account before its record is appended under this one, so the copy can only be newer than the sealed
+        segments, never older: replaying the record from the new segment writes the same balance again. the slow part (writing and forcing the store)
+        then happens without the lock while transactions keep going into the new dirty set and journal segment
+         */
+        BitSet dirty;
+        long[] balances;
+        long sealedSegment = -1;
+        LedgerCheckpoint ledgerCheckpoint = null;
+        stateLock.lock();
+        try {
+            if(dirtySlots.isEmpty()){
+                return 0;
+            }
+
+            dirty = dirtySlots;
+            dirtySlots = new BitSet();
+            balances = new long[dirty.cardinality()];
+            int i = 0;
+            for(int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1)){
+                UserAccount acc = slot < loadedAccounts.length ? loadedAccounts[slot] : null;
+                balances[i++] = acc != null ? acc.getBalance() : NOT_LOADED; // an account that was never loaded already has its balance in the store (replayed from the journal)
+            }
+
+            if(journal != null){
+                sealedSegment = journal.roll();
+            }
+
+            if(ledger != null){
+                ledgerCheckpoint = ledger.beginCheckpoint(); // the entries of exactly the transactions the sealed segments hold
+            }
+        } finally {
+            stateLock.unlock();
+        }
+
+        try {
+            if(sealedSegment >= 0){
+                journal.forceSealed(); // the fsync the roll left out, now that the transactions go on
+            }
+
+            long start = System.nanoTime();
+            long written = storeAccounts(store, dirty, balances);
+            AtmMetrics.CHECKPOINT_NANOS.record(System.nanoTime() - start);
+            if(ledgerCheckpoint != null){
+                written += ledger.completeCheckpoint(ledgerCheckpoint);
+            }
+
+            if(sealedSegment >= 0){
+                journal.deleteSegmentsUpTo(sealedSegment); // everything those segments held is now in the store
+            }
+
+            return written;
+        } catch (IOException | RuntimeException e) {
+            stateLock.lock();
+            try {
+                dirtySlots.or(dirty); // the next checkpoint will write them again, the sealed segments stay until then
+                if(ledgerCheckpoint != null){
+                    ledger.abortCheckpoint(ledgerCheckpoint);
+                }
+            } finally {
+                stateLock.unlock();
+            }
+
+            throw e;
+        }
+    }
+
+    static long storeAccounts(MappedAccountStore store, BitSet dirty, long[] balances) throws IOException { // balances holds one entry per dirty slot, NOT_LOADED ones are skipped
+        // only the changed slots are written and forced, so the cost of a checkpoint depends on the number of changes and not on the number of accounts
+        long written = store.forceHeap();
+        int i = 0;
+        int first = dirty.nextSetBit(0);
+        while(first >= 0){
+            int end = dirty.nextClearBit(first); // consecutive dirty slots are forced together
+            for(int slot = first; slot < end; slot++){
+                long balance = balances[i++];
+                if(balance != NOT_LOADED){
+                    store.setBalance(slot, balance);
+                }
+            }
+
+            written += store.force(first, end - first);
+            first = dirty.nextSetBit(end);
+        }
+
+        return written;
+    }
+
+    private static UserAccount account(int slot){ // deserializes the account in the given slot the first time it is asked for
+        stateLock.lock();
+        try {
+            if(slot >= loadedAccounts.length){
+                loadedAccounts = Arrays.copyOf(loadedAccounts, Math.max(slot + 1, loadedAccounts.length * 2));
+            }
+
+            UserAccount acc = loadedAccounts[slot];
+            if(acc == null){
+                try {
+                    acc = new UserAccount(store.id(slot), new AccountOwner(store.name(slot), store.credential(slot)), store.balance(slot));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                loadedAccounts[slot] = acc;
+            }
+
+            return acc;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private static void loadAccounts() throws IOException {
+        Files.createDirectories(Paths.get(DATA_DIR)); // a first run in an empty folder creates its store there
+        if(!new File(STORE_FILE_LOC).exists() && new File(LEGACY_ACCOUNT_FILE_LOC).exists()){
+            migrateLegacyAccounts();
+        }
+
+        long start = System.nanoTime();
+        store = MappedAccountStore.open(STORE_FILE_LOC, NAMES_FILE_LOC);
+        if(store.getVersion() < MappedAccountStore.VERSION){
+            upgradeStore();
+        }
+
+        accountIndex = indexAccounts(store);
+        long now = System.currentTimeMillis();
+        for(int slot = 0; slot < store.size(); slot++){
+            loginThrottle.restore(store.id(slot), store.failedLogins(slot), store.lastFailedLogin(slot), now);
+        }
+
+        AtmMetrics.loadNanos = System.nanoTime() - start;
+        AtmMetrics.loadBytes = new File(STORE_FILE_LOC).length() + new File(NAMES_FILE_LOC).length();
+    }
+
+    static AccountIndex indexAccounts(MappedAccountStore store){
+        AccountIndex index = new AccountIndex(store.size());
+        for(int slot = 0; slot < store.size(); slot++){ // only the ids are read, the rest of an account stays on the disk until it is needed
+            index.put(store.id(slot), slot);
+        }
+
+        return index;
+    }
+
+    private static void upgradeStore() throws IOException {
+        // the store is copied into a new accounts.dat which then replaces the old one in a single move. if it still holds plain pins they get hashed on the way
+        PinHash[] credentials = null;
+        if(store.getVersion() < 3){
+            int[] pins = new int[store.size()];
+            for(int slot = 0; slot < pins.length; slot++){
+                pins[slot] = store.plainPin(slot);
+            }
+
+            credentials = pinVerifier.hashAll(pins, pins.length);
+        }
+
+        String tempStore = STORE_FILE_LOC + ".tmp";
+        Files.deleteIfExists(Paths.get(tempStore));
+        store.convertTo(tempStore, credentials);
+        store.close();
+        Files.move(Paths.get(tempStore), Paths.get(STORE_FILE_LOC), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        store = MappedAccountStore.open(STORE_FILE_LOC, NAMES_FILE_LOC);
+    }
+
+    private static void migrateLegacyAccounts() throws IOException {
+        // we build the new store next to the real one and move it into place at the end so that a crash halfway through just restarts the migration
+        String tempStore = STORE_FILE_LOC + ".tmp";
+        String tempNames = NAMES_FILE_LOC + ".tmp";
+        Files.deleteIfExists(Paths.get(tempStore));
+        Files.deleteIfExists(Paths.get(tempNames));
+        MappedAccountStore target = MappedAccountStore.open(tempStore, tempNames);
+        try {
+            loadLegacyAccounts(LEGACY_ACCOUNT_FILE_LOC, target, pinVerifier);
+        } finally {
+            target.close(); // also forces it
+        }
+
+        Files.move(Paths.get(tempNames), Paths.get(NAMES_FILE_LOC), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(Paths.get(tempStore), Paths.get(STORE_FILE_LOC), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); // accounts.dat appearing is what marks the migration as done
+    }
+
+    static void loadLegacyAccounts(String path, MappedAccountStore target, PinVerifier hasher) throws IOException {
+        final int batchSize = 4096; // the pins of a batch are hashed in parallel before the batch is appended
+        long[] ids = new long[batchSize];
+        String[] names = new String[batchSize];
+        int[] pins = new int[batchSize];
+        long[] balances = new long[batchSize];
+        int[] batched = {0};
+        readLegacyAccounts(path, (id, name, pin, balance) -> {
+            ids[batched[0]] = id;
+            names[batched[0]] = name;
+            pins[batched[0]] = pin;
+            balances[batched[0]] = balance;
+            if(++batched[0] == batchSize){
+                appendBatch(target, hasher, ids, names, pins, balances, batched[0]);
+                batched[0] = 0;
+            }
+        });
+
+        appendBatch(target, hasher, ids, names, pins, balances, batched[0]);
+    }
+
+    static void readLegacyAccounts(String path, ILegacyAccountVisitor visitor) throws IOException {
+        /*
+        the old format stores the data in a binary format in a big-endian order
+        I used the concepts of "FString" and "TArray" I worked with in the past from Unreal Engine that basically serializes the size of the array/string before the data itself
+        to know how much shall be deserialized when loading the file: [account count][for each account: [name length][name][pin][balance][id]]
+         */
+        try (ChannelReader reader = new ChannelReader(FileChannel.open(Paths.get(path), StandardOpenOption.READ))) { // throws if the file is not found
+            int availableAcc = reader.readInt(); // the first 4 bytes of the file determine how many accounts are saved
+            byte[] name = new byte[64]; // reused for every name, only grows when a longer one shows up
+            for(int i = 0; i < availableAcc; i++){ // if there are no accounts the for won't execute
+                int nameLength = reader.readInt();
+                if(nameLength < 0){
+                    throw new IOException("corrupted name length for account " + i);
+                }
+
+                if(nameLength > name.length){
+                    name = new byte[Math.max(nameLength, name.length * 2)];
+                }
+
+                reader.readFully(name, nameLength);
+                String accountName = new String(name, 0, nameLength, StandardCharsets.UTF_8);
+                int pin = reader.readInt();
+                long balance = Money.fromDouble(reader.readDouble()); // the old format stored dollars as a double
+                visitor.visit(reader.readLong(), accountName, pin, balance);
+            }
+        }
+    }
+
+    private static void appendBatch(MappedAccountStore target, PinVerifier hasher, long[] ids, String[] names, int[] pins, long[] balances, int count) throws IOException {
+        PinHash[] credentials = hasher.hashAll(pins, count);
+        for(int i = 0; i < count; i++){
+            target.append(ids[i], names[i], credentials[i], balances[i]); // and add it to the store
+        }
+    }
+
+    static String pinToString(int pin){ // take for example: 0123. parsing that as an int will give 123 so we need to add the leading '0's back
+        String pinCode = String.valueOf(pin);
+        while(pinCode.length() < 4){
+            pinCode = '0' + pinCode;
+        }
+
+        return pinCode;
+    }
+}
+
+//endregion
+
+// region SETTLEMENT
+
+class SettlementTotals {
+    /*
+    what a run of consecutive ledger entries did to every account it touched: the balance before its first entry, the balance after its last one,
+    the sum of what its entries changed and how many of them didn't start from the balance the entry before them left. the totals of two runs that
+    follow each other merge into the totals of both, checking the balance across the boundary as well, which is what lets every fork-join task
+    settle its own chunk of the ledger. open addressing on the account id like AccountIndex, a slot without entries is empty
+     */
+    private static final float MAX_LOAD = 0.6f;
+
+    private long[] ids;
+    private long[] openings; // balance before the first entry
+    private long[] closings; // balance after the last entry
+    private long[] changes; // sum of what the entries changed, withdrawals count negative
+    private int[] counts; // entries, 0 for an empty slot
+    private int[] breaks; // entries whose balance isn't the previous balance plus their change
+    private int size;
+    private int mask;
+    private int resizeThreshold;
+    private final long[] operationCounts; // indexed by Operation ordinal
+    private final long[] operationCents; // sum of the ledger amounts by Operation ordinal, the two sides of a transfer cancel out
+
+    SettlementTotals(int expectedAccounts){
+        allocate(Integer.highestOneBit(Math.max(16, (int)(expectedAccounts / MAX_LOAD)) - 1) << 1);
+        operationCounts = new long[Operation.values().length];
+        operationCents = new long[Operation.values().length];
+    }
+
+    void add(long accountId, Operation operation, long amount, long balance){ // the next entry of the run
+        long change = operation == Operation.WITHDRAW ? -amount : amount; // the ledger stores withdrawals as positive amounts
+        operationCounts[operation.ordinal()]++;
+        operationCents[operation.ordinal()] += amount;
+        if(size >= resizeThreshold){
+            rehash(ids.length << 1);
+        }
+
+        int i = find(accountId);
+        if(counts[i] == 0){
+            ids[i] = accountId;
+            openings[i] = balance - change;
+            size++;
+        }
+        else if(closings[i] + change != balance){
+            breaks[i]++;
+        }
+
+        closings[i] = balance;
+        changes[i] += change;
+        counts[i]++;
+    }
+
+    static SettlementTotals merge(SettlementTotals earlier, SettlementTotals later){ // later has to start where earlier ends, the bigger one absorbs the other
+        if(earlier.size >= later.size){
+            earlier.absorb(later, true);
+            return earlier;
+        }
+
+        later.absorb(earlier, false);
+        return later;
+    }
+
+    int indexOf(long accountId){ // -1 if the run has no entry of that account
+        int i = find(accountId);
+        return counts[i] == 0 ? -1 : i;
+    }
+
+    long opening(int i){
+        return openings[i];
+    }
+
+    long change(int i){
+        return changes[i];
+    }
+
+    int count(int i){
+        return counts[i];
+    }
+
+    int breaks(int i){
+        return breaks[i];
+    }
+
+    long operationCount(Operation operation){
+        return operationCounts[operation.ordinal()];
+    }
+
+    long operationCents(Operation operation){
+        return operationCents[operation.ordinal()];
+    }
+
+    long entries(){
+        long entries = 0;
+        for(long count : operationCounts){
+            entries += count;
+        }
+
+        return entries;
+    }
+
+    private void absorb(SettlementTotals other, boolean otherIsLater){
+        for(int j = 0; j < other.ids.length; j++){
+            if(other.counts[j] == 0){
+                continue;
+            }
+
+            if(size >= resizeThreshold){
+                rehash(ids.length << 1);
+            }
+
+            int i = find(other.ids[j]);
+            if(counts[i] == 0){
+                ids[i] = other.ids[j];
+                openings[i] = other.openings[j];
+                closings[i] = other.closings[j];
+                changes[i] = other.changes[j];
+                counts[i] = other.counts[j];
+                breaks[i] = other.breaks[j];
+                size++;
+                continue;
+            }
+
+            if(otherIsLater){ // the other run has to pick up the balance where ours left it
+                breaks[i] += closings[i] != other.openings[j] ? 1 : 0;
+                closings[i] = other.closings[j];
+            }
+            else{
+                breaks[i] += other.closings[j] != openings[i] ? 1 : 0;
+                openings[i] = other.openings[j];
+            }
+
+            changes[i] += other.changes[j];
+            counts[i] += other.counts[j];
+            breaks[i] += other.breaks[j];
+        }
+
+        for(int op = 0; op < operationCounts.length; op++){
+            operationCounts[op] += other.operationCounts[op];
+            operationCents[op] += other.operationCents[op];
+        }
+    }
+
+    private int find(long accountId){ // the slot of the account, or the empty slot it would go into
+        int i = slotOf(accountId);
+        while(counts[i] != 0 && ids[i] != accountId){
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    private int slotOf(long id){ // same murmur3 finalizer as AccountIndex
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return (int)id & mask;
+    }
+
+    private void allocate(int capacity){
+        ids = new long[capacity];
+        openings = new long[capacity];
+        closings = new long[capacity];
+        changes = new long[capacity];
+        counts = new int[capacity];
+        breaks = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int)(capacity * MAX_LOAD);
+    }
+
+    private void rehash(int newCapacity){
+        long[] oldIds = ids;
+        long[] oldOpenings = openings;
+        long[] oldClosings = closings;
+        long[] oldChanges = changes;
+        int[] oldCounts = counts;
+        int[] oldBreaks = breaks;
+        allocate(newCapacity);
+        for(int j = 0; j < oldIds.length; j++){
+            if(oldCounts[j] != 0){
+                int i = find(oldIds[j]);
+                ids[i] = oldIds[j];
+                openings[i] = oldOpenings[j];
+                closings[i] = oldClosings[j];
+                changes[i] = oldChanges[j];
+                counts[i] = oldCounts[j];
+                breaks[i] = oldBreaks[j];
+            }
+        }
+    }
+}
+
+class SettlementTask extends RecursiveTask<SettlementTotals> { // the totals of the ledger entries [from, to), halved until a chunk is small enough for one thread
+    static final long CHUNK_ENTRIES = 1 << 18; // 16MB of entries, big enough that merging the chunks costs little next to reading them
+
+    private final TransactionLedger ledger;
+    private final long from;
+    private final long to;
+    private final int expectedAccounts;
+
+    SettlementTask(TransactionLedger ledger, long from, long to, int expectedAccounts){
+        this.ledger = ledger;
+        this.from = from;
+        this.to = to;
+        this.expectedAccounts = expectedAccounts;
+    }
+
+    @Override
+    protected SettlementTotals compute() {
+        if(to - from <= CHUNK_ENTRIES){
+            SettlementTotals totals = new SettlementTotals((int)Math.min(to - from, expectedAccounts));
+            ledger.forEach(from, to, (entry, accountId, operation, amount, balance) -> totals.add(accountId, operation, amount, balance));
+            return totals;
+        }
+
+        long middle = from + (to - from) / 2;
+        SettlementTask earlier = new SettlementTask(ledger, from, middle, expectedAccounts);
+        earlier.fork();
+        SettlementTotals later = new SettlementTask(ledger, middle, to, expectedAccounts).compute();
+        return SettlementTotals.merge(earlier.join(), later);
+    }
+}
+
+class SettlementSnapshot {
+    /*
+    the balance of every account as a settlement left it and how many ledger entries it had settled, the next settlement starts from there and only
+    reads the entries that came after. 16 bytes per account in store slot order, against the 80 bytes of a store slot with its pin hash and lockouts
+    header:  [magic (4)][version (4)][settled ledger entries (8)][time of the settlement in epoch millis (8)][account count (4)][reserved (4)]
+    account: [id (8)][balance in cents (8)]
+     */
+    private static final int MAGIC = 0x41544D42; // "ATMB"
+    private static final int VERSION = 1;
+
+    private final long ledgerEntries;
+    private final long settledAt;
+    private final long[] ids;
+    private final long[] balances;
+
+    SettlementSnapshot(long ledgerEntries, long settledAt, long[] ids, long[] balances){
+        this.ledgerEntries = ledgerEntries;
+        this.settledAt = settledAt;
+        this.ids = ids;
+        this.balances = balances;
+    }
+
+    static SettlementSnapshot read(String path) throws IOException { // null if there has been no settlement yet
+        Path file = Paths.get(path);
+        if(!Files.exists(file)){
+            return null;
+        }
+
+        try (ChannelReader reader = new ChannelReader(FileChannel.open(file, StandardOpenOption.READ))) {
+            if(reader.readInt() != MAGIC || reader.readInt() != VERSION){
+                throw new IOException("not a settlement snapshot or an unsupported version");
+            }
+
+            long ledgerEntries = reader.readLong();
+            long settledAt = reader.readLong();
+            int count = reader.readInt();
+            reader.readInt(); // reserved
+            if(count < 0){
+                throw new IOException("corrupted account count in the settlement snapshot");
+            }
+
+            long[] ids = new long[count];
+            long[] balances = new long[count];
+            for(int i = 0; i < count; i++){
+                ids[i] = reader.readLong();
+                balances[i] = reader.readLong();
+            }
+
+            return new SettlementSnapshot(ledgerEntries, settledAt, ids, balances);
+        }
+    }
+
+    void write(String path) throws IOException { // written next to the old snapshot and moved over it, a crash leaves the old one as it was
+        Path temp = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(ledgerEntries).putLong(settledAt).putInt(ids.length).putInt(0);
+            for(int i = 0; i < ids.length; i++){
+                if(buffer.remaining() < Long.BYTES * 2){
+                    drain(channel, buffer);
+                }
+
+                buffer.putLong(ids[i]).putLong(balances[i]);
+            }
+
+            drain(channel, buffer);
+            channel.force(true); // the length too, the file is new
+        }
+
+        Files.move(temp, Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    long getLedgerEntries() {
+        return ledgerEntries;
+    }
+
+    long getSettledAt() {
+        return settledAt;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    long id(int slot){
+        return ids[slot];
+    }
+
+    long balance(int slot){
+        return balances[slot];
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+}
+
+class SettlementReport {
+    private static final int LISTED_MISMATCHES = 20; // the count covers the rest
+
+    private final long fromEntry;
+    private final long toEntry;
+    private final SettlementTotals totals;
+    private final SettlementSnapshot snapshot; // what the next settlement starts from
+    private final long[] listedIds;
+    private final long[] listedExpected;
+    private final long[] listedActual;
+    private final int[] listedBreaks;
+    private int mismatches;
+    private long openingTotal;
+    private long closingTotal;
+    private long unknownEntries; // entries of ids the store doesn't have
+    private long elapsedNanos;
+
+    SettlementReport(long fromEntry, long toEntry, SettlementTotals totals, SettlementSnapshot snapshot){
+        this.fromEntry = fromEntry;
+        this.toEntry = toEntry;
+        this.totals = totals;
+        this.snapshot = snapshot;
+        listedIds = new long[LISTED_MISMATCHES];
+        listedExpected = new long[LISTED_MISMATCHES];
+        listedActual = new long[LISTED_MISMATCHES];
+        listedBreaks = new int[LISTED_MISMATCHES];
+    }
+
+    void addAccount(long id, long opening, long expected, long actual, int breaks){
+        openingTotal += opening;
+        closingTotal += actual;
+        if(expected == actual && breaks == 0){
+            return;
+        }
+
+        if(mismatches < LISTED_MISMATCHES){
+            listedIds[mismatches] = id;
+            listedExpected[mismatches] = expected;
+            listedActual[mismatches] = actual;
+            listedBreaks[mismatches] = breaks;
+        }
+
+        mismatches++;
+    }
+
+    void finish(long unknownEntries, long elapsedNanos){
+        this.unknownEntries = unknownEntries;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    boolean isSettled(){
+        return mismatches == 0 && unknownEntries == 0 && totals.operationCents(Operation.TRANSFER) == 0;
+    }
+
+    int getMismatchCount() {
+        return mismatches;
+    }
+
+    long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    SettlementSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    void print(PrintStream out){
+        double seconds = elapsedNanos / 1e9;
+        long entries = toEntry - fromEntry;
+        out.printf("settlement of %s: ledger entries %d to %d, %d accounts%n", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(snapshot.getSettledAt())),
+                fromEntry, toEntry, snapshot.size());
+        for(Operation operation : Operation.values()){
+            out.printf("%-9s %10d entries %16s%n", operation, totals.operationCount(operation), Money.format(totals.operationCents(operation)));
+        }
+
+        out.printf("balances: opened at %s, closed at %s%n", Money.format(openingTotal), Money.format(closingTotal));
+        out.printf("mismatched accounts: %d%n", mismatches);
+        for(int i = 0; i < Math.min(mismatches, LISTED_MISMATCHES); i++){
+            out.printf("  %d: expected %s, holds %s, %d broken entries%n", listedIds[i], Money.format(listedExpected[i]), Money.format(listedActual[i]), listedBreaks[i]);
+        }
+
+        out.printf("entries of unknown accounts: %d%n", unknownEntries);
+        out.printf("took %.2fs, %.0f entries/s -> %s%n", seconds, entries / Math.max(seconds, 1e-9), isSettled() ? "settled" : "NOT SETTLED");
+    }
+}
+
+class BatchSettlement {
+    /*
+    end of day reconciliation. the ledger entries since the last settlement are read in parallel chunks by a fork-join pool, every chunk sums up what
+    it did to each account (SettlementTotals) and the chunks merge into the totals of the day. an account settles if the balance it started with plus
+    its transactions is what it holds now, and each of its entries picked up the balance where the one before it left it.
+    an account starts from its balance in the last snapshot, or from 0 if it was opened since. the very first settlement has no snapshot: there an
+    account starts from its balance before its first ledger entry (what it had before the ledger existed), or from what it holds if it has no entries.
+    the new snapshot holds what the accounts hold, mismatches included, so a mismatch is reported once and not carried into every later day
+     */
+    private BatchSettlement(){
+    }
+
+    static SettlementReport settle(TransactionLedger ledger, long ledgerEntries, long[] ids, long[] balances, SettlementSnapshot previous, ForkJoinPool pool) throws IOException {
+        // ids and balances are by store slot, taken at the moment the ledger had ledgerEntries entries
+        long start = System.nanoTime();
+        long fromEntry = previous == null ? 0 : previous.getLedgerEntries();
+        if(fromEntry > ledgerEntries){
+            throw new IOException("the ledger has fewer entries than the last settlement covered");
+        }
+
+        if(previous != null){
+            if(previous.size() > ids.length){
+                throw new IOException("the last settlement snapshot has more accounts than the store");
+            }
+
+            for(int slot = 0; slot < previous.size(); slot++){
+                if(previous.id(slot) != ids[slot]){
+                    throw new IOException("the last settlement snapshot doesn't belong to this account store");
+                }
+            }
+        }
+
+        SettlementTotals totals = pool.invoke(new SettlementTask(ledger, fromEntry, ledgerEntries, ids.length));
+        SettlementReport report = new SettlementReport(fromEntry, ledgerEntries, totals, new SettlementSnapshot(ledgerEntries, System.currentTimeMillis(), ids, balances));
+        long knownEntries = 0;
+        for(int slot = 0; slot < ids.length; slot++){
+            int i = totals.indexOf(ids[slot]);
+            long opening;
+            if(previous != null){
+                opening = slot < previous.size() ? previous.balance(slot) : 0; // accounts are opened empty
+            }
+            else{
+                opening = i >= 0 ? totals.opening(i) : balances[slot];
+            }
+
+            long expected = opening;
+            int breaks = 0;
+            if(i >= 0){
+                expected += totals.change(i);
+                breaks = totals.breaks(i) + (totals.opening(i) != opening ? 1 : 0);
+                knownEntries += totals.count(i);
+            }
+
+            report.addAccount(ids[slot], opening, expected, balances[slot], breaks);
+        }
+
+        report.finish(totals.entries() - knownEntries, System.nanoTime() - start);
+        return report;
+    }
+}
+
+// endregion
+
+// region ENGINE
+
+enum TransactionResult{
+    SUCCESS, // the balance was updated
+    INSUFFICIENT_FUNDS, // a withdrawal bigger than the balance
+    INVALID_AMOUNT, // the amount is not a positive number (or would overflow the balance)
+    INVALID_TARGET // a transfer to an account that doesn't exist or to the same account
+}
+
+interface IAtmService { // what a terminal needs from the bank, either in the same process (AtmEngine) or over the network (RemoteAtmService)
+    AccountFetchState authenticate(long id, String pin) throws IOException;
+    long createAccount(String name, String pin) throws IOException; // returns the id of the new account
+    long getBalance(UserAccount user) throws IOException; // in cents
+    TransactionResult withdraw(UserAccount user, long amount) throws IOException;
+    TransactionResult deposit(UserAccount user, long amount) throws IOException;
+    TransactionResult transfer(UserAccount user, long toId, long amount) throws IOException; // from user's account to the one with id toId
+    LedgerEntry[] getStatement(UserAccount user, long from, long to, int max) throws IOException; // the newest (at most max) transactions between from and to (epoch millis, inclusive), newest first
+    void close() throws IOException; // called when the terminal shuts down
+}
+
+class AtmEngine implements IAtmService { // everything the ATM can do with an account, without any swing involved so that the UI, a server or a benchmark can all drive it
+    static final int MAX_NAME_LENGTH = 15; // what the username field lets you type
+
+    @Override
+    public AccountFetchState authenticate(long id, String pin){
+        return AccountManager.getUserAccount(id, pin);
+    }
+
+    @Override
+    public long createAccount(String name, String pin){
+        if(name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH){
+            throw new IllegalArgumentException("name must be between 1 and " + MAX_NAME_LENGTH + " characters");
+        }
+
+        if(!isValidPin(pin)){
+            throw new IllegalArgumentException("pin must be 4 digits");
+        }
+
+        return AccountManager.createNewAccount(name, pin);
+    }
+
+    @Override
+    public long getBalance(UserAccount user){
+        return user.getBalance();
+    }
+
+    @Override
+    public TransactionResult withdraw(UserAccount user, long amount) throws IOException { // throws if the transaction went through but couldn't be journaled
+        if(amount <= 0){
+            return counted(AtmMetrics.WITHDRAWALS, TransactionResult.INVALID_AMOUNT);
+        }
+
+        if(!AccountManager.withdraw(user, amount)){
+            return counted(AtmMetrics.WITHDRAWALS, TransactionResult.INSUFFICIENT_FUNDS);
+        }
+
+        AtmMetrics.WITHDRAWN_CENTS.add(amount);
+        return counted(AtmMetrics.WITHDRAWALS, TransactionResult.SUCCESS);
+    }
+
+    @Override
+    public TransactionResult deposit(UserAccount user, long amount) throws IOException { // throws if the transaction went through but couldn't be journaled
+        if(amount <= 0){
+            return counted(AtmMetrics.DEPOSITS, TransactionResult.INVALID_AMOUNT);
+        }
+
+        try {
+            AccountManager.deposit(user, amount);
+        } catch (ArithmeticException e) {
+            return counted(AtmMetrics.DEPOSITS, TransactionResult.INVALID_AMOUNT);
+        }
+
+        AtmMetrics.DEPOSITED_CENTS.add(amount);
+        return counted(AtmMetrics.DEPOSITS, TransactionResult.SUCCESS);
+    }
+
+    @Override
+    public TransactionResult transfer(UserAccount user, long toId, long amount) throws IOException { // throws if the transfer went through but couldn't be journaled
+        if(amount <= 0){
+            return counted(AtmMetrics.TRANSFERS, TransactionResult.INVALID_AMOUNT);
+        }
+
+        TransactionResult result = AccountManager.transfer(user, toId, amount);
+        if(result == TransactionResult.SUCCESS){
+            AtmMetrics.TRANSFERRED_CENTS.add(amount);
+        }
+
+        return counted(AtmMetrics.TRANSFERS, result);
+    }
+
+    @Override
+    public LedgerEntry[] getStatement(UserAccount user, long from, long to, int max){
+        return AccountManager.getTransactions(user.getId(), from, to, max);
+    }
+
+    private static TransactionResult counted(LongAdder[] counters, TransactionResult result){
+        counters[result.ordinal()].increment();
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        AccountManager.saveAllToFile();
+    }
+
+    static boolean isValidPin(String pin){
+        if(pin == null || pin.length() != 4){
+            return false;
+        }
+
+        for(int i = 0; i < pin.length(); i++){
+            if(pin.charAt(i) < '0' || pin.charAt(i) > '9'){
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
+
+// endregion
+
+// region SERVER
+
+final class AtmProtocol {
+    /*
+    compact binary protocol between the terminals and the server, big-endian like the rest of our files.
+    request:  [frame length (4)][opcode (1)][payload]
+    response: [frame length (4)][status (1)][payload]
+    the frame length counts what comes after it. a connection is a session: once LOGIN succeeds, BALANCE/WITHDRAW/DEPOSIT apply to that account
+     */
+    static final byte LOGIN = 1; // [id (8)][pin (4 ascii digits)] -> status = LoginState ordinal, on success [balance (8)][name (utf-8)], when locked out [retry after millis (8)]
+    static final byte CREATE_ACCOUNT = 2; // [pin (4 ascii digits)][name (utf-8)] -> [id (8)]
+    static final byte BALANCE = 3; // [] -> [balance (8)]
+    static final byte WITHDRAW = 4; // [amount (8)] -> status = TransactionResult ordinal, [balance (8)]
+    static final byte DEPOSIT = 5; // [amount (8)] -> status = TransactionResult ordinal, [balance (8)]
+    static final byte LOGOUT = 6; // [] -> []
+    static final byte HISTORY = 7; // [from (8)][to (8)][max (4)] -> [count (1)][count times, newest first: [timestamp (8)][operation (1)][amount (8)][balance (8)]]
+    static final byte TRANSFER = 8; // [to id (8)][amount (8)] -> status = TransactionResult ordinal, [balance (8)]
+
+    static final byte OK = 0;
+    static final byte NOT_LOGGED_IN = 100;
+    static final byte BAD_REQUEST = 101;
+    static final byte SERVER_ERROR = 102;
+
+    static final int MAX_FRAME = 256; // nothing we send comes close, anything bigger is garbage
+    static final int MAX_HISTORY = 10; // history entries that fit in a frame, a bigger max gets cut down to it
+    static final int HISTORY_ENTRY_SIZE = Long.BYTES + 1 + Long.BYTES + Long.BYTES;
+    static final int DEFAULT_PORT = 4242;
+
+    private AtmProtocol(){
+    }
+}
+
+class AtmSession { // what the server knows about a connected terminal
+    private UserAccount account; // null until the terminal logs in
+
+    UserAccount getAccount() {
+        return account;
+    }
+
+    void setAccount(UserAccount account) {
+        this.account = account;
+    }
+}
+
+class AtmRequestHandler { // decodes a request, runs it against the engine and encodes the response, shared by every way of running the server
+    private final AtmEngine engine;
+
+    AtmRequestHandler(AtmEngine engine){
+        this.engine = engine;
+    }
+
+    void handle(ByteBuffer request, AtmSession session, ByteBuffer response){
+        /*
+        request holds exactly one frame body (opcode + payload). the response frame (length prefix included) is appended to response,
+        which must have at least AtmProtocol.MAX_FRAME bytes left
+         */
+        int lengthPosition = response.position();
+        response.putInt(0); // patched once we know the length
+        try {
+            dispatch(request, session, response);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            response.position(lengthPosition + Integer.BYTES);
+            response.put(AtmProtocol.BAD_REQUEST);
+        } catch (IOException | RuntimeException e) {
+            response.position(lengthPosition + Integer.BYTES);
+            response.put(AtmProtocol.SERVER_ERROR);
+        }
+
+        response.putInt(lengthPosition, response.position() - lengthPosition - Integer.BYTES);
+    }
+
+    private void dispatch(ByteBuffer request, AtmSession session, ByteBuffer response) throws IOException {
+        byte opcode = request.get();
+        switch (opcode) {
+            case AtmProtocol.LOGIN: {
+                long id = request.getLong();
+                String pin = readPin(request);
+                AccountFetchState state = engine.authenticate(id, pin);
+                response.put((byte)state.getState().ordinal());
+                if(state.getState() == LoginState.SUCCESS){
+                    session.setAccount(state.getUserAccount());
+                    response.putLong(state.getUserAccount().getBalance());
+                    response.put(state.getUserAccount().getOwner().getName().getBytes(StandardCharsets.UTF_8));
+                }
+                else if(state.getState() == LoginState.LOCKED_OUT){
+                    response.putLong(state.getRetryAfterMillis());
+                }
+                break;
+            }
+            case AtmProtocol.CREATE_ACCOUNT: {
+                String pin = readPin(request);
+                byte[] name = new byte[request.remaining()];
+                request.get(name);
+                long id = engine.createAccount(new String(name, StandardCharsets.UTF_8), pin);
+                response.put(AtmProtocol.OK).putLong(id);
+                break;
+            }
+            case AtmProtocol.BALANCE: {
+                if(session.getAccount() == null){
+                    response.put(AtmProtocol.NOT_LOGGED_IN);
+                    break;
+                }
+
+                response.put(AtmProtocol.OK).putLong(engine.getBalance(session.getAccount()));
+                break;
+            }
+            case AtmProtocol.WITHDRAW:
+            case AtmProtocol.DEPOSIT: {
+                if(session.getAccount() == null){
+                    response.put(AtmProtocol.NOT_LOGGED_IN);
+                    break;
+                }
+
+                long amount = request.getLong();
+                TransactionResult result = opcode == AtmProtocol.WITHDRAW ? engine.withdraw(session.getAccount(), amount) : engine.deposit(session.getAccount(), amount);
+                response.put((byte)result.ordinal()).putLong(session.getAccount().getBalance());
+                break;
+            }
+            case AtmProtocol.TRANSFER: {
+                if(session.getAccount() == null){
+                    response.put(AtmProtocol.NOT_LOGGED_IN);
+                    break;
+                }
+
+                long to = request.getLong();
+                TransactionResult result = engine.transfer(session.getAccount(), to, request.getLong());
+                response.put((byte)result.ordinal()).putLong(session.getAccount().getBalance());
+                break;
+            }
+            case AtmProtocol.HISTORY: {
+                if(session.getAccount() == null){
+                    response.put(AtmProtocol.NOT_LOGGED_IN);
+                    break;
+                }
+
+                long from = request.getLong();
+                long to = request.getLong();
+                LedgerEntry[] entries = engine.getStatement(session.getAccount(), from, to, Math.min(request.getInt(), AtmProtocol.MAX_HISTORY));
+                response.put(AtmProtocol.OK).put((byte)entries.length);
+                for(LedgerEntry entry : entries){
+                    response.putLong(entry.getTimestamp()).put((byte)entry.getOperation().ordinal()).putLong(entry.getAmount()).putLong(entry.getBalance());
+                }
+                break;
+            }
+            case AtmProtocol.LOGOUT: {
+                session.setAccount(null);
+                response.put(AtmProtocol.OK);
+                break;
+            }
+            default:
+                response.put(AtmProtocol.BAD_REQUEST);
+        }
+    }
+
+    private static String readPin(ByteBuffer request){
+        byte[] pin = new byte[4];
+        request.get(pin);
+        return new String(pin, StandardCharsets.US_ASCII);
+    }
+}
+
+enum ServerThreadModel {
+    EVENT_LOOP, // one selector thread multiplexes every terminal, a pool of workers runs their requests
+    PLATFORM_POOL, // each terminal is served by blocking code on a bounded pool of platform threads, extra terminals wait for a free thread
+    VIRTUAL_THREADS; // each terminal gets its own virtual thread running the same blocking code
+
+    static ServerThreadModel fromName(String name){ // "event-loop", "platform-pool" or "virtual-threads"
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
+
+class AtmServer { // serves the account store to many terminals on localhost
+    private final int port;
+    private final AtmRequestHandler handler;
+    private final ServerThreadModel threadModel;
+    private final int poolSize; // threads of PLATFORM_POOL, workers that run the requests of EVENT_LOOP
+    private final Set<SocketChannel> sessions; // open blocking sessions, so ::stop can end them
+    private final Queue<SelectionKey> completed; // EVENT_LOOP connections whose request a worker is done with, waiting for the selector to send the answer
+    private volatile boolean running;
+    private volatile Selector selector;
+    private volatile ServerSocketChannel server;
+
+    AtmServer(int port, AtmEngine engine){
+        this(port, engine, ServerThreadModel.fromName(System.getProperty("atm.server.threads", "event-loop")), Integer.getInteger("atm.server.pool", 200));
+    }
+
+    AtmServer(int port, AtmEngine engine, ServerThreadModel threadModel, int poolSize){
+        if(poolSize <= 0){
+            throw new IllegalArgumentException("the pool size must be a positive number");
+        }
+
+        this.port = port;
+        this.threadModel = threadModel;
+        this.poolSize = poolSize;
+        handler = new AtmRequestHandler(engine);
+        sessions = ConcurrentHashMap.newKeySet();
+        completed = new ConcurrentLinkedQueue<>();
+    }
+
+    ServerThreadModel getThreadModel() {
+        return threadModel;
+    }
+
+    void run() throws IOException { // blocks until ::stop is called
+        server = ServerSocketChannel.open();
+        try (ServerSocketChannel server = this.server) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+            running = true;
+            if(threadModel == ServerThreadModel.EVENT_LOOP){
+                runEventLoop(server);
+            }
+            else{
+                runThreadPerSession(server);
+            }
+        }
+    }
+
+    void stop(){
+        running = false;
+        Selector selector = this.selector;
+        if(selector != null){
+            selector.wakeup();
+        }
+
+        ServerSocketChannel server = this.server;
+        if(server != null && threadModel != ServerThreadModel.EVENT_LOOP){
+            try {
+                server.close(); // unblocks accept
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // region EVENT_LOOP
+
+    private void runEventLoop(ServerSocketChannel server) throws IOException {
+        /*
+        the selector thread only moves bytes: a complete request is handed to a worker, which runs it (pin hashing, the journal fsync) and queues
+        the connection back with its response, then wakes the selector up to write it. a terminal has at most one request with the workers at a
+        time, so its requests still run and answer in the order they were sent, and its session is only ever used by one thread at a time
+         */
+        selector = Selector.open();
+        ExecutorService workers = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "atm-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            while(running){
+                selector.select();
+                SelectionKey done;
+                while((done = completed.poll()) != null){
+                    try {
+                        respond(done, workers);
+                    } catch (IOException e) {
+                        closeQuietly(done);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if(key.isAcceptable()){
+                            accept(server);
+                        }
+                        else{
+                            if(key.isReadable()){
+                                read(key, workers);
+                            }
+
+                            if(key.isValid() && key.isWritable()){
+                                write(key, workers);
+                            }
+                        }
+                    } catch (IOException e) {
+                        closeQuietly(key); // the terminal went away, the other ones keep going
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown(); // not interrupted, an interrupted fsync would close the journal under the requests that are still running
+            try {
+                workers.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            for(SelectionKey key : selector.keys()){
+                closeQuietly(key);
+            }
+
+            selector.close();
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel client;
+        while((client = server.accept()) != null){
+            client.configureBlocking(false);
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true); // requests are tiny and a terminal waits for every answer
+            client.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void read(SelectionKey key, ExecutorService workers) throws IOException {
+        Connection connection = (Connection)key.attachment();
+        if(((SocketChannel)key.channel()).read(connection.in) < 0){
+            closeQuietly(key);
+            return;
+        }
+
+        dispatch(key, workers);
+    }
+
+    private void dispatch(SelectionKey key, ExecutorService workers){ // hands the next complete request of the connection to a worker, if it has none there already
+        Connection connection = (Connection)key.attachment();
+        ByteBuffer in = connection.in;
+        if(!connection.busy && in.position() >= Integer.BYTES){
+            int length = in.getInt(0);
+            if(length <= 0 || length > AtmProtocol.MAX_FRAME){
+                closeQuietly(key); // we can't find the next frame after a broken one
+                return;
+            }
+
+            // a full frame, and room for its answer: a terminal that is not reading its answers doesn't get its requests read until it does
+            if(in.position() >= Integer.BYTES + length && connection.out.remaining() >= AtmProtocol.MAX_FRAME + Integer.BYTES){
+                in.flip();
+                in.position(Integer.BYTES);
+                connection.request.clear();
+                connection.request.put(in.slice().limit(length)).flip();
+                in.position(Integer.BYTES + length);
+                in.compact();
+                connection.busy = true;
+                workers.execute(() -> {
+                    connection.response.clear();
+                    handler.handle(connection.request, connection.session, connection.response);
+                    completed.add(key);
+                    selector.wakeup();
+                });
+            }
+        }
+
+        interest(key);
+    }
+
+    private void respond(SelectionKey key, ExecutorService workers) throws IOException { // on the selector thread, once a worker is done with a request
+        Connection connection = (Connection)key.attachment();
+        connection.busy = false;
+        if(!key.isValid()){
+            return; // the terminal went away while its request ran
+        }
+
+        connection.out.put(connection.response.flip()); // dispatch made sure it fits
+        write(key, workers);
+    }
+
+    private void write(SelectionKey key, ExecutorService workers) throws IOException {
+        Connection connection = (Connection)key.attachment();
+        connection.out.flip();
+        ((SocketChannel)key.channel()).write(connection.out);
+        connection.out.compact();
+        dispatch(key, workers); // the next request may have been waiting for the answer or for room in out
+    }
+
+    private static void interest(SelectionKey key){
+        if(!key.isValid()){
+            return;
+        }
+
+        Connection connection = (Connection)key.attachment();
+        int ops = 0;
+        if(!connection.busy && connection.in.hasRemaining()){
+            ops |= SelectionKey.OP_READ; // a terminal waiting for an answer can't have another request read
+        }
+
+        if(connection.out.position() > 0){
+            ops |= SelectionKey.OP_WRITE; // only ask for write readiness while we have something to write
+        }
+
+        key.interestOps(ops);
+    }
+
+    private static void closeQuietly(SelectionKey key){
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Connection { // buffers are only touched by the selector thread, except request/response/session by the worker that has the request
+        final ByteBuffer in = ByteBuffer.allocate(AtmProtocol.MAX_FRAME * 4);
+        final ByteBuffer out = ByteBuffer.allocate(AtmProtocol.MAX_FRAME * 16);
+        final ByteBuffer request = ByteBuffer.allocate(AtmProtocol.MAX_FRAME);
+        final ByteBuffer response = ByteBuffer.allocate(AtmProtocol.MAX_FRAME + Integer.BYTES);
+        final AtmSession session = new AtmSession();
+        boolean busy; // a worker has a request of this connection, only read and written by the selector thread
+    }
+
+    // endregion
+
+    // region THREAD_PER_SESSION
+
+    private void runThreadPerSession(ServerSocketChannel server) throws IOException {
+        ExecutorService executor = threadModel == ServerThreadModel.VIRTUAL_THREADS ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "atm-session");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            while(running){
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (ClosedChannelException e) {
+                    break; // ::stop closed it
+                }
+
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                sessions.add(client);
+                executor.execute(() -> serve(client));
+            }
+        } finally {
+            for(SocketChannel client : sessions){
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            executor.shutdownNow();
+        }
+    }
+
+    private void serve(SocketChannel client){ // one terminal, start to finish, as plain blocking code
+        ByteBuffer request = ByteBuffer.allocate(AtmProtocol.MAX_FRAME);
+        ByteBuffer response = ByteBuffer.allocate(AtmProtocol.MAX_FRAME + Integer.BYTES);
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        AtmSession session = new AtmSession();
+        try (SocketChannel channel = client) {
+            while(running){
+                length.clear();
+                if(!readFully(channel, length)){
+                    break; // the terminal hung up
+                }
+
+                int frameLength = length.getInt(0);
+                if(frameLength <= 0 || frameLength > AtmProtocol.MAX_FRAME){
+                    break;
+                }
+
+                request.clear().limit(frameLength);
+                if(!readFully(channel, request)){
+                    break;
+                }
+
+                request.flip();
+                response.clear();
+                handler.handle(request, session, response);
+                response.flip();
+                while(response.hasRemaining()){
+                    channel.write(response);
+                }
+            }
+        } catch (IOException ignored) {
+            // the terminal went away, the other ones keep going
+        } finally {
+            sessions.remove(client);
+        }
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException { // false if the stream ended first
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(){
+        /*
+        virtual threads only exist from java 21 on, look the factory up so the project still builds and runs on older jdks.
+        there we fall back to one platform thread per terminal, which behaves the same until the os runs out of threads
+         */
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("virtual threads need java 21, using a platform thread per terminal instead");
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "atm-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // endregion
+}
+
+class RemoteAtmService implements IAtmService { // talks to an AtmServer, lets an ATMFrame run against an account store that lives in another process
+    private final SocketChannel channel;
+    private final ByteBuffer request;
+    private final ByteBuffer response;
+    private long sessionAccountId; // account the connection is logged into, -1 if none
+
+    RemoteAtmService(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        request = ByteBuffer.allocate(AtmProtocol.MAX_FRAME + Integer.BYTES);
+        response = ByteBuffer.allocate(AtmProtocol.MAX_FRAME + Integer.BYTES);
+        sessionAccountId = -1;
+    }
+
+    @Override
+    public synchronized AccountFetchState authenticate(long id, String pin) throws IOException {
+        ByteBuffer r = call(begin(AtmProtocol.LOGIN).putLong(id).put(pin.getBytes(StandardCharsets.US_ASCII)));
+        byte status = r.get();
+        if(status < 0 || status >= LoginState.values().length){
+            throw new IOException("unexpected login status " + status);
+        }
+
+        LoginState state = LoginState.values()[status];
+        if(state == LoginState.LOCKED_OUT){
+            return new AccountFetchState(state, null, r.getLong());
+        }
+
+        if(state != LoginState.SUCCESS){
+            return new AccountFetchState(state, null);
+        }
+
+        long balance = r.getLong();
+        byte[] name = new byte[r.remaining()];
+        r.get(name);
+        sessionAccountId = id;
+        return new AccountFetchState(state, new UserAccount(id, new AccountOwner(new String(name, StandardCharsets.UTF_8), null), balance)); // local copy of the account, the server's one is the real one
+    }
+
+    @Override
+    public synchronized long createAccount(String name, String pin) throws IOException {
+        ByteBuffer r = call(begin(AtmProtocol.CREATE_ACCOUNT).put(pin.getBytes(StandardCharsets.US_ASCII)).put(name.getBytes(StandardCharsets.UTF_8)));
+        expectOk(r.get());
+        return r.getLong();
+    }
+
+    @Override
+    public synchronized long getBalance(UserAccount user) throws IOException {
+        checkSession(user);
+        ByteBuffer r = call(begin(AtmProtocol.BALANCE));
+        expectOk(r.get());
+        long balance = r.getLong();
+        user.setBalance(balance); // keep our copy in sync with what the server says
+        return balance;
+    }
+
+    @Override
+    public synchronized TransactionResult withdraw(UserAccount user, long amount) throws IOException {
+        return transaction(AtmProtocol.WITHDRAW, user, amount);
+    }
+
+    @Override
+    public synchronized TransactionResult deposit(UserAccount user, long amount) throws IOException {
+        return transaction(AtmProtocol.DEPOSIT, user, amount);
+    }
+
+    @Override
+    public synchronized TransactionResult transfer(UserAccount user, long toId, long amount) throws IOException {
+        checkSession(user);
+        return transactionResult(user, call(begin(AtmProtocol.TRANSFER).putLong(toId).putLong(amount)));
+    }
+
+    @Override
+    public synchronized LedgerEntry[] getStatement(UserAccount user, long from, long to, int max) throws IOException { // at most AtmProtocol.MAX_HISTORY entries
+        checkSession(user);
+        ByteBuffer r = call(begin(AtmProtocol.HISTORY).putLong(from).putLong(to).putInt(max));
+        expectOk(r.get());
+        LedgerEntry[] entries = new LedgerEntry[r.get()];
+        if(r.remaining() != entries.length * AtmProtocol.HISTORY_ENTRY_SIZE){
+            throw new IOException("malformed history");
+        }
+
+        for(int i = 0; i < entries.length; i++){
+            long timestamp = r.getLong();
+            byte operation = r.get();
+            if(operation < 0 || operation >= Operation.values().length){
+                throw new IOException("unexpected operation " + operation);
+            }
+
+            entries[i] = new LedgerEntry(timestamp, Operation.values()[operation], r.getLong(), r.getLong());
+        }
+
+        return entries;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private TransactionResult transaction(byte opcode, UserAccount user, long amount) throws IOException {
+        checkSession(user);
+        return transactionResult(user, call(begin(opcode).putLong(amount)));
+    }
+
+    private static TransactionResult transactionResult(UserAccount user, ByteBuffer r) throws IOException { // [status][balance], the balance goes into our copy of the account
+        byte status = r.get();
+        if(status < 0 || status >= TransactionResult.values().length){
+            throw new IOException("unexpected transaction status " + status);
+        }
+
+        user.setBalance(r.getLong());
+        return TransactionResult.values()[status];
+    }
+
+    private void checkSession(UserAccount user) throws IOException {
+        if(user.getId() != sessionAccountId){
+            throw new IOException("this terminal is not logged into account " + user.getId());
+        }
+    }
+
+    private ByteBuffer begin(byte opcode){
+        request.clear();
+        request.putInt(0);
+        return request.put(opcode);
+    }
+
+    private ByteBuffer call(ByteBuffer frame) throws IOException { // sends the frame started by ::begin and returns the body of the response
+        frame.putInt(0, frame.position() - Integer.BYTES);
+        frame.flip();
+        while(frame.hasRemaining()){
+            channel.write(frame);
+        }
+
+        response.clear();
+        response.limit(Integer.BYTES);
+        readFully();
+        int length = response.getInt(0);
+        if(length <= 0 || length > AtmProtocol.MAX_FRAME){
+            throw new IOException("malformed response");
+        }
+
+        response.limit(Integer.BYTES + length);
+        readFully();
+        response.position(Integer.BYTES);
+        return response;
+    }
+
+    private void readFully() throws IOException {
+        while(response.hasRemaining()){
+            if(channel.read(response) < 0){
+                throw new EOFException("server closed the connection");
+            }
+        }
+    }
+
+    private static void expectOk(byte status) throws IOException {
+        if(status != AtmProtocol.OK){
+            throw new IOException(status == AtmProtocol.BAD_REQUEST ? "the server rejected the request" : "the server failed to process the request (status " + status + ")");
+        }
+    }
+}
+
+// endregion
+
+// region LOAD_GENERATOR
+
+class LatencyHistogram {
+    /*
+    log-linear histogram in the spirit of HdrHistogram: values below 128 get a bucket each, above that every power of two is split into 64
+    buckets, so any recorded value is known to within ~1.5%. fixed size, no allocation when recording, not thread safe (one per client, merged at the end)
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 128
+    private static final int HALF = SUB_BUCKETS / 2; // 64
+    static final int BUCKET_COUNT = SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS) * HALF;
+    private final long[] counts;
+    private long totalCount;
+    private long max;
+    private double sum;
+
+    LatencyHistogram(){
+        counts = new long[BUCKET_COUNT];
+    }
+
+    void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+
+        counts[index(value)]++;
+        totalCount++;
+        sum += value;
+        if(value > max){
+            max = value;
+        }
+    }
+
+    void add(LatencyHistogram other){
+        for(int i = 0; i < counts.length; i++){
+            counts[i] += other.counts[i];
+        }
+
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return totalCount;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    long percentile(double percentile){ // highest value of the bucket the percentile falls in, so we never report better than what happened
+        if(totalCount == 0){
+            return 0;
+        }
+
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen >= rank){
+                return Math.min(highestValue(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    static int index(long value){
+        if(value < SUB_BUCKETS){
+            return (int)value;
+        }
+
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1); // brings value into [64, 128)
+        return SUB_BUCKETS + (shift - 1) * HALF + (int)((value >>> shift) - HALF);
+    }
+
+    static long highestValue(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long lowest = ((long)(index - SUB_BUCKETS) % HALF + HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
+
+enum LoadOperation {
+    LOGIN, // right id and pin
+    WRONG_PIN, // right id, wrong pin, on decoy accounts so the throttle never locks the ones the other operations use
+    NO_ACCOUNT, // an id that can't exist
+    BALANCE,
+    WITHDRAW,
+    DEPOSIT,
+    TRANSFER // to another of the synthetic accounts, the total they hold doesn't change
+}
+
+class LoadGenerator {
+    /*
+    creates synthetic accounts then hammers them from several clients with a weighted mix of operations, against this process' account
+    store or a running server. latencies are measured from when an operation was scheduled to start (not when it actually started), so a
+    stalled server shows up in the percentiles instead of just slowing the clients down
+     */
+    private final IAtmService[] clients; // one per client thread, a RemoteAtmService is one connection
+    private final int accountCount;
+    private final double targetRate; // operations per second over all clients, 0 for as fast as possible
+    private final long durationNanos;
+    private final int[] mixWeights; // indexed by LoadOperation ordinal
+    private final int totalWeight;
+    private long[] ids;
+    private String[] pins;
+    private long[] decoyIds; // only ever see wrong pins, so they end up locked out
+    private String[] decoyPins;
+
+    LoadGenerator(IAtmService[] clients, int accountCount, double targetRate, long durationMillis, int[] mixWeights){
+        if(clients.length == 0 || accountCount <= 0 || targetRate < 0 || durationMillis <= 0){
+            throw new IllegalArgumentException("clients, accounts and duration must be positive numbers and the rate can't be negative");
+        }
+
+        if(mixWeights.length != LoadOperation.values().length || Arrays.stream(mixWeights).anyMatch(w -> w < 0) || Arrays.stream(mixWeights).sum() == 0){
+            throw new IllegalArgumentException("the mix needs a non negative weight for every operation and at least one positive weight");
+        }
+
+        this.clients = clients;
+        this.accountCount = accountCount;
+        this.targetRate = targetRate;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.mixWeights = mixWeights.clone();
+        totalWeight = Arrays.stream(mixWeights).sum();
+    }
+
+    void createAccounts() throws IOException {
+        ids = new long[accountCount];
+        pins = new String[accountCount];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int i = 0; i < accountCount; i++){
+            pins[i] = AccountManager.pinToString(random.nextInt(10000));
+            ids[i] = clients[0].createAccount("load" + i, pins[i]);
+        }
+
+        decoyIds = new long[Math.max(1, accountCount / 10)];
+        decoyPins = new String[decoyIds.length];
+        for(int i = 0; i < decoyIds.length; i++){
+            decoyPins[i] = AccountManager.pinToString(random.nextInt(10000));
+            decoyIds[i] = clients[0].createAccount("decoy" + i, decoyPins[i]);
+        }
+    }
+
+    LoadReport run() throws InterruptedException, IOException {
+        if(ids == null){
+            createAccounts();
+        }
+
+        Worker[] workers = new Worker[clients.length];
+        Thread[] threads = new Thread[clients.length];
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50); // give every thread the time to start
+        for(int i = 0; i < workers.length; i++){
+            workers[i] = new Worker(clients[i], start, targetRate == 0 ? 0 : (long)(1e9 * clients.length / targetRate));
+            threads[i] = new Thread(workers[i], "load-" + i);
+            threads[i].start();
+        }
+
+        for(Thread thread : threads){
+            thread.join();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        LoadReport report = new LoadReport(elapsed);
+        for(Worker worker : workers){
+            report.add(worker); // including the ones that died, what they did before still counts towards the balance check
+        }
+
+        report.setBalanceCheck(totalBalance(), report.getNetDeposited());
+        return report;
+    }
+
+    private long totalBalance() throws IOException { // sum of what the synthetic accounts hold now
+        long total = 0;
+        for(int i = 0; i < accountCount; i++){
+            total += clients[0].authenticate(ids[i], pins[i]).getUserAccount().getBalance();
+        }
+
+        return total;
+    }
+
+    private LoadOperation pick(ThreadLocalRandom random){
+        int roll = random.nextInt(totalWeight);
+        for(LoadOperation operation : LoadOperation.values()){
+            roll -= mixWeights[operation.ordinal()];
+            if(roll < 0){
+                return operation;
+            }
+        }
+
+        throw new IllegalStateException("unreachable");
+    }
+
+    private class Worker implements Runnable {
+        final IAtmService service;
+        final long start;
+        final long intervalNanos; // 0 when unthrottled
+        final LatencyHistogram[] latencies; // nanoseconds, indexed by LoadOperation ordinal
+        final long[] unexpected; // outcomes that don't match the operation, indexed by LoadOperation ordinal
+        final long[] declined; // withdrawals with insufficient funds and the like, indexed by LoadOperation ordinal
+        long netDeposited; // cents
+        UserAccount lastLogin; // account of the last successful LOGIN, where the next operations go
+        Exception failure; // what stopped the client before the end of the run, null if nothing did
+
+        Worker(IAtmService service, long start, long intervalNanos){
+            this.service = service;
+            this.start = start;
+            this.intervalNanos = intervalNanos;
+            latencies = new LatencyHistogram[LoadOperation.values().length];
+            for(int i = 0; i < latencies.length; i++){
+                latencies[i] = new LatencyHistogram();
+            }
+
+            unexpected = new long[latencies.length];
+            declined = new long[latencies.length];
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try {
+                int current = random.nextInt(accountCount);
+                UserAccount user = service.authenticate(ids[current], pins[current]).getUserAccount(); // every client starts logged in
+                long intended = start;
+                long end = start + durationNanos;
+                while(true){
+                    if(intervalNanos == 0){
+                        intended = System.nanoTime();
+                    }
+                    else{
+                        intended += intervalNanos;
+                        long wait = intended - System.nanoTime();
+                        if(wait > 0){
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+
+                    if(intended >= end){
+                        break;
+                    }
+
+                    LoadOperation operation = pick(random);
+                    int outcome = execute(operation, user, random);
+                    latencies[operation.ordinal()].record(System.nanoTime() - intended);
+                    if(operation == LoadOperation.LOGIN && outcome == 0){
+                        user = lastLogin;
+                    }
+                    else if(outcome < 0){
+                        unexpected[operation.ordinal()]++;
+                    }
+                    else if(outcome > 0){
+                        declined[operation.ordinal()]++;
+                    }
+                }
+            } catch (IOException | RuntimeException e) { // a bug must not just quietly take a client out of the run
+                failure = e;
+            }
+        }
+
+        private int execute(LoadOperation operation, UserAccount user, ThreadLocalRandom random) throws IOException { // 0 as expected, >0 declined, <0 wrong
+            switch (operation) {
+                case LOGIN: {
+                    int i = random.nextInt(accountCount);
+                    AccountFetchState state = service.authenticate(ids[i], pins[i]);
+                    lastLogin = state.getUserAccount();
+                    return state.getState() == LoginState.SUCCESS ? 0 : -1;
+                }
+                case WRONG_PIN: {
+                    int i = random.nextInt(decoyIds.length);
+                    String wrongPin = AccountManager.pinToString((Integer.parseInt(decoyPins[i]) + 1 + random.nextInt(9999)) % 10000);
+                    LoginState state = service.authenticate(decoyIds[i], wrongPin).getState();
+                    return state == LoginState.WRONG_PIN || state == LoginState.LOCKED_OUT ? 1 : -1;
+                }
+                case NO_ACCOUNT:
+                    return service.authenticate(random.nextLong(1, 100000000000000L), "0000").getState() == LoginState.ACC_NOT_EXIST ? 1 : -1; // below the range of UserAccount::randomId
+                case BALANCE:
+                    service.getBalance(user);
+                    return 0;
+                case WITHDRAW: {
+                    long amount = random.nextLong(1, 10001);
+                    TransactionResult result = service.withdraw(user, amount);
+                    if(result == TransactionResult.SUCCESS){
+                        netDeposited -= amount;
+                        return 0;
+                    }
+
+                    return result == TransactionResult.INSUFFICIENT_FUNDS ? 1 : -1;
+                }
+                case DEPOSIT: {
+                    long amount = random.nextLong(1, 10001);
+                    if(service.deposit(user, amount) != TransactionResult.SUCCESS){
+                        return -1;
+                    }
+
+                    netDeposited += amount;
+                    return 0;
+                }
+                case TRANSFER: {
+                    int i = random.nextInt(accountCount);
+                    if(ids[i] == user.getId()){
+                        i = (i + 1) % accountCount; // the next one, unless it is the only account
+                    }
+
+                    TransactionResult result = service.transfer(user, ids[i], random.nextLong(1, 10001));
+                    if(result == TransactionResult.SUCCESS){
+                        return 0;
+                    }
+
+                    return result == TransactionResult.INSUFFICIENT_FUNDS || (accountCount == 1 && result == TransactionResult.INVALID_TARGET) ? 1 : -1;
+                }
+                default:
+                    throw new IllegalStateException("unknown operation " + operation);
+            }
+        }
+    }
+
+    class LoadReport {
+        private final long elapsedNanos;
+        private final LatencyHistogram[] latencies;
+        private final long[] unexpected;
+        private final long[] declined;
+        private long netDeposited;
+        private long totalBalance;
+        private int failedClients;
+        private Exception firstFailure; // of the failed clients, null if none failed
+
+        private LoadReport(long elapsedNanos){
+            this.elapsedNanos = elapsedNanos;
+            latencies = new LatencyHistogram[LoadOperation.values().length];
+            for(int i = 0; i < latencies.length; i++){
+                latencies[i] = new LatencyHistogram();
+            }
+
+            unexpected = new long[latencies.length];
+            declined = new long[latencies.length];
+        }
+
+        private void add(Worker worker){
+            for(int i = 0; i < latencies.length; i++){
+                latencies[i].add(worker.latencies[i]);
+                unexpected[i] += worker.unexpected[i];
+                declined[i] += worker.declined[i];
+            }
+
+            netDeposited += worker.netDeposited;
+            if(worker.failure != null){
+                failedClients++;
+                if(firstFailure == null){
+                    firstFailure = worker.failure;
+                }
+            }
+        }
+
+        private void setBalanceCheck(long totalBalance, long netDeposited){
+            this.totalBalance = totalBalance;
+            this.netDeposited = netDeposited;
+        }
+
+        long getNetDeposited() {
+            return netDeposited;
+        }
+
+        boolean isBalanceConserved() { // the synthetic accounts start empty, so they must hold exactly what went in minus what went out
+            return totalBalance == netDeposited;
+        }
+
+        long getUnexpectedCount() {
+            return Arrays.stream(unexpected).sum();
+        }
+
+        int getFailedClients() { // clients that stopped early on an exception
+            return failedClients;
+        }
+
+        boolean isSuccessful() {
+            return failedClients == 0 && getUnexpectedCount() == 0 && isBalanceConserved();
+        }
+
+        LatencyHistogram getLatencies(LoadOperation operation) {
+            return latencies[operation.ordinal()];
+        }
+
+        void print(PrintStream out){
+            double seconds = elapsedNanos / 1e9;
+            long total = 0;
+            out.printf("%-11s %9s %10s %9s %9s %9s %9s %9s %9s %8s%n", "operation", "count", "ops/s", "mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "declined");
+            for(LoadOperation operation : LoadOperation.values()){
+                LatencyHistogram h = latencies[operation.ordinal()];
+                total += h.getCount();
+                out.printf("%-11s %9d %10.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %8d%n", operation, h.getCount(), h.getCount() / seconds, h.getMean() / 1e3,
+                        h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.getMax() / 1e3, declined[operation.ordinal()]);
+            }
+
+            out.printf("total %d operations in %.2fs, %.1f ops/s%n", total, seconds, total / seconds);
+            out.printf("unexpected outcomes: %d%n", getUnexpectedCount());
+            out.printf("failed clients: %d%s%n", failedClients, firstFailure == null ? "" : " (first: " + firstFailure + ")");
+            out.printf("balance check: accounts hold %s, net deposits %s -> %s%n", Money.format(totalBalance), Money.format(netDeposited), isBalanceConserved() ? "ok" : "MISMATCH");
+        }
+    }
+
+    static void main(String... args) throws IOException, InterruptedException {
+        /*
+        key=value options:
+        accounts (1000), clients (16), rate in total ops/s (0 = unthrottled), seconds (10),
+        mix as operation:weight pairs (login:10,wrong_pin:5,no_account:5,balance:20,withdraw:25,deposit:25,transfer:10),
+        connect=[host:]port to load a running server instead of this process' account store.
+        without connect the accounts it creates stay in the store, so unless atm.data.dir names one it runs on a fresh store in a temp directory
+        and never touches the real data/
+         */
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals < 0){
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+
+            options.put(arg.substring(0, equals).toLowerCase(), arg.substring(equals + 1));
+        }
+
+        int accounts = Integer.parseInt(options.getOrDefault("accounts", "1000"));
+        int clientCount = Integer.parseInt(options.getOrDefault("clients", "16"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "10"));
+        int[] mix = parseMix(options.getOrDefault("mix", "login:10,wrong_pin:5,no_account:5,balance:20,withdraw:25,deposit:25,transfer:10"));
+        String connect = options.get("connect");
+
+        IAtmService[] clients = new IAtmService[clientCount];
+        if(connect == null){
+            if(System.getProperty("atm.data.dir") == null){ // AccountManager reads it when it is first used, which is right below
+                System.setProperty("atm.data.dir", Files.createTempDirectory("atm-load").toString());
+                System.out.println("no atm.data.dir given, using " + System.getProperty("atm.data.dir"));
+            }
+
+            AccountManager.initializeAccounts();
+            Arrays.fill(clients, new AtmEngine());
+        }
+        else{
+            int separator = connect.lastIndexOf(':');
+            String host = separator < 0 ? "localhost" : connect.substring(0, separator);
+            int port = Integer.parseInt(separator < 0 ? connect : connect.substring(separator + 1));
+            for(int i = 0; i < clientCount; i++){
+                clients[i] = new RemoteAtmService(host, port);
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(clients, accounts, rate, TimeUnit.SECONDS.toMillis(seconds), mix);
+        long createStart = System.nanoTime();
+        generator.createAccounts();
+        System.out.printf("created %d accounts in %.2fs%n", accounts, (System.nanoTime() - createStart) / 1e9);
+        LoadReport report = generator.run();
+        report.print(System.out);
+        if(connect == null){
+            clients[0].close();
+        }
+        else{
+            for(IAtmService client : clients){
+                client.close();
+            }
+        }
+
+        if(!report.isSuccessful()){
+            System.exit(1);
+        }
+    }
+
+    private static int[] parseMix(String mix){
+        int[] weights = new int[LoadOperation.values().length];
+        for(String entry : mix.split(",")){
+            String[] pair = entry.split(":");
+            if(pair.length != 2){
+                throw new IllegalArgumentException("expected operation:weight, got " + entry);
+            }
+
+            weights[LoadOperation.valueOf(pair[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+
+        return weights;
+    }
+}
+
+// endregion
+
+// region METRICS
+
+class MetricHistogram {
+    /*
+    same buckets as LatencyHistogram, but every bucket is an atomic counter so any number of threads can record without a lock.
+    percentiles are computed from a copy of the buckets, which is good enough for something read every few seconds
+     */
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    MetricHistogram(){
+        counts = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+
+        counts.incrementAndGet(LatencyHistogram.index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    long percentile(double percentile){
+        long[] copy = new long[counts.length()];
+        long total = 0;
+        for(int i = 0; i < copy.length; i++){
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+
+        if(total == 0){
+            return 0;
+        }
+
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < copy.length; i++){
+            seen += copy[i];
+            if(seen >= rank){
+                return Math.min(LatencyHistogram.highestValue(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+}
+
+class MetricsRegistry {
+    /*
+    named counters, gauges and histograms in the order they were registered. recording is a LongAdder/atomic operation, the text and jmx
+    views are only built when someone asks for them. names follow the prometheus conventions (snake case, _total for counters, base units)
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private final List<Metric> metrics;
+
+    MetricsRegistry(){
+        metrics = new CopyOnWriteArrayList<>();
+    }
+
+    LongAdder counter(String name, String help){
+        return counter(name, help, null, null);
+    }
+
+    LongAdder counter(String name, String help, String labelName, String labelValue){ // one counter per label value, registered under the same name
+        LongAdder adder = new LongAdder();
+        metrics.add(new Metric(name, help, labelName, labelValue, "counter", adder::sum, null, 1));
+        return adder;
+    }
+
+    void counter(String name, String help, LongSupplier value){ // a count kept somewhere else, it must only ever go up
+        metrics.add(new Metric(name, help, null, null, "counter", value, null, 1));
+    }
+
+    void gauge(String name, String help, LongSupplier value){
+        metrics.add(new Metric(name, help, null, null, "gauge", value, null, 1));
+    }
+
+    void gauge(String name, String help, LongSupplier value, double scale){ // scale converts the value into the unit of the name (1e-9 for nanoseconds -> seconds)
+        metrics.add(new Metric(name, help, null, null, "gauge", value, null, scale));
+    }
+
+    void gauge(String name, String help, String labelName, String labelValue, LongSupplier value, double scale){ // one gauge per label value, registered under the same name
+        metrics.add(new Metric(name, help, labelName, labelValue, "gauge", value, null, scale));
+    }
+
+    MetricHistogram histogram(String name, String help, double scale){ // exposed as a prometheus summary
+        MetricHistogram histogram = new MetricHistogram();
+        metrics.add(new Metric(name, help, null, null, "summary", null, histogram, scale));
+        return histogram;
+    }
+
+    void writePrometheus(Appendable out) throws IOException { // prometheus text exposition format 0.0.4
+        String lastName = null;
+        for(Metric metric : metrics){
+            if(!metric.name.equals(lastName)){ // labeled series of the same metric share their header
+                out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+                lastName = metric.name;
+            }
+
+            if(metric.histogram == null){
+                out.append(metric.name).append(metric.labels(null)).append(' ').append(metric.format(metric.value.getAsLong())).append('\n');
+                continue;
+            }
+
+            for(double quantile : QUANTILES){
+                out.append(metric.name).append(metric.labels("quantile=\"" + quantile + "\"")).append(' ').append(metric.format(metric.histogram.percentile(quantile * 100))).append('\n');
+            }
+
+            out.append(metric.name).append("_sum").append(metric.labels(null)).append(' ').append(metric.format(metric.histogram.getSum())).append('\n');
+            out.append(metric.name).append("_count").append(metric.labels(null)).append(' ').append(String.valueOf(metric.histogram.getCount())).append('\n');
+        }
+    }
+
+    Map<String, Number> snapshot(){ // flat view for jmx: histograms become _count, _p50, _p99 and _max attributes
+        Map<String, Number> values = new LinkedHashMap<>();
+        for(Metric metric : metrics){
+            String name = metric.labelName == null ? metric.name : metric.name + "_" + metric.labelValue;
+            if(metric.histogram == null){
+                values.put(name, metric.scaled(metric.value.getAsLong()));
+                continue;
+            }
+
+            values.put(name + "_count", metric.histogram.getCount());
+            values.put(name + "_p50", metric.scaled(metric.histogram.percentile(50)));
+            values.put(name + "_p99", metric.scaled(metric.histogram.percentile(99)));
+            values.put(name + "_max", metric.scaled(metric.histogram.getMax()));
+        }
+
+        return values;
+    }
+
+    private static class Metric {
+        final String name;
+        final String help;
+        final String labelName; // null when the metric has no label
+        final String labelValue;
+        final String type;
+        final LongSupplier value; // null for histograms
+        final MetricHistogram histogram; // null for counters and gauges
+        final double scale;
+
+        Metric(String name, String help, String labelName, String labelValue, String type, LongSupplier value, MetricHistogram histogram, double scale){
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+            this.labelValue = labelValue;
+            this.type = type;
+            this.value = value;
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+
+        String labels(String extra){
+            if(labelName == null && extra == null){
+                return "";
+            }
+
+            StringBuilder labels = new StringBuilder("{");
+            if(labelName != null){
+                labels.append(labelName).append("=\"").append(labelValue).append('"');
+            }
+
+            if(extra != null){
+                labels.append(labelName != null ? "," : "").append(extra);
+            }
+
+            return labels.append('}').toString();
+        }
+
+        Number scaled(long raw){
+            return scale == 1 ? (Number)raw : (Number)(raw * scale);
+        }
+
+        String format(long raw){
+            return scale == 1 ? String.valueOf(raw) : String.valueOf(raw * scale);
+        }
+    }
+}
+
+class MetricsMBean implements DynamicMBean { // read only view of a registry, every metric is an attribute
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry){
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = registry.snapshot().get(attribute);
+        if(value == null){
+            throw new AttributeNotFoundException(attribute);
+        }
 
-    public UserAccount(long id, AccountOwner owner, double balance){
-        this.owner = owner;
-        this.id = id;
-        setBalance(balance);
+        return value;
     }
 
-    public UserAccount(AccountOwner owner, double balance) {
-        this(ThreadLocalRandom.current().nextLong(100000000000000L,999999999999999L), owner, balance);
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> snapshot = registry.snapshot();
+        AttributeList list = new AttributeList();
+        for(String attribute : attributes){
+            if(snapshot.containsKey(attribute)){
+                list.add(new Attribute(attribute, snapshot.get(attribute)));
+            }
+        }
 
+        return list;
     }
 
-    public long getId() {
-        return id;
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read only");
     }
 
-    public AccountOwner getOwner() {
-        return owner;
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
     }
 
-    public double getBalance() {
-        return balance;
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
     }
 
-    public void setBalance(double balance) {
-        if(balance < 0){
-            throw new IllegalArgumentException("balance must be a positive number"); // throw an exception in case the balance var is negative
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> snapshot = registry.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for(Map.Entry<String, Number> entry : snapshot.entrySet()){
+            String type = entry.getValue() instanceof Double ? "double" : "long";
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), type, entry.getKey(), true, false, false);
         }
 
-        this.balance = balance;
+        return new MBeanInfo(getClass().getName(), "ATM metrics", attributes, null, null, null);
     }
 }
 
-class AccountFetchState{
-    private final LoginState state; // login state
-    private final UserAccount userAccount; // user account (null if login is unsuccessful, otherwise non-null)
+class AtmMetrics { // the metrics of the account core, recorded wherever the thing happens
+    static final MetricsRegistry REGISTRY = new MetricsRegistry();
+    static final LongAdder[] LOGINS = new LongAdder[LoginState.values().length]; // indexed by LoginState ordinal
+    static final MetricHistogram LOOKUP_NANOS = REGISTRY.histogram("atm_account_lookup_seconds", "Time AccountManager.getUserAccount takes, pin check included.", 1e-9);
+    static final LongAdder ACCOUNTS_CREATED = REGISTRY.counter("atm_accounts_created_total", "Accounts created.");
+    static final LongAdder[] WITHDRAWALS = new LongAdder[TransactionResult.values().length]; // indexed by TransactionResult ordinal
+    static final LongAdder WITHDRAWN_CENTS = REGISTRY.counter("atm_withdrawn_cents_total", "Money taken out by successful withdrawals, in cents.");
+    static final LongAdder[] DEPOSITS = new LongAdder[TransactionResult.values().length]; // indexed by TransactionResult ordinal
+    static final LongAdder DEPOSITED_CENTS = REGISTRY.counter("atm_deposited_cents_total", "Money put in by successful deposits, in cents.");
+    static final LongAdder[] TRANSFERS = new LongAdder[TransactionResult.values().length]; // indexed by TransactionResult ordinal
+    static final LongAdder TRANSFERRED_CENTS = REGISTRY.counter("atm_transferred_cents_total", "Money moved between accounts by successful transfers, in cents.");
+    static final MetricHistogram JOURNAL_SYNC_NANOS = REGISTRY.histogram("atm_journal_sync_seconds", "Time a transaction waits for the journal to be forced.", 1e-9);
+    static final LongAdder PIN_CACHE_HITS = REGISTRY.counter("atm_pin_cache_hits_total", "Logins whose pin matched a recently verified one.");
+    static final LongAdder PIN_CACHE_MISSES = REGISTRY.counter("atm_pin_cache_misses_total", "Logins whose pin had to be checked against its hash.");
+    static final MetricHistogram PIN_VERIFY_NANOS = REGISTRY.histogram("atm_pin_verify_seconds", "Time checking a pin against its hash takes, waiting for the pool included.", 1e-9);
+    static final MetricHistogram CHECKPOINT_NANOS = REGISTRY.histogram("atm_checkpoint_seconds", "Time storeAccounts takes to write and force the changed accounts.", 1e-9);
+    static final MetricHistogram LEDGER_QUERY_NANOS = REGISTRY.histogram("atm_ledger_query_seconds", "Time a transaction history query takes.", 1e-9);
+    static final MetricHistogram COMPACTION_NANOS = REGISTRY.histogram("atm_compaction_seconds", "Time merging the sealed journal segments takes, rate limiting included.", 1e-9);
+    static final LongAdder UI_REPAINT_REQUESTS = REGISTRY.counter("atm_ui_repaint_requests_total", "Repaints the atm window's components asked for.");
+    static final LongAdder UI_FRAMES = REGISTRY.counter("atm_ui_frames_total", "Frames the atm window painted.");
+    static final MetricHistogram UI_PAINT_NANOS = REGISTRY.histogram("atm_ui_paint_seconds", "Time painting the dirty regions of one frame takes.", 1e-9);
+    static final LongAdder UI_SPRITE_HITS = REGISTRY.counter("atm_ui_sprite_hits_total", "Button paints that blitted a cached sprite.");
+    static final LongAdder UI_SPRITE_MISSES = REGISTRY.counter("atm_ui_sprite_misses_total", "Button paints that had to render their sprite.");
+    static volatile long loadNanos; // how long loadAccounts took
+    static volatile long loadBytes; // size of the store it opened
+    static volatile long settlementNanos; // how long the last settlement took
+    static volatile long settlementMismatches; // accounts the last settlement couldn't settle
 
-    public AccountFetchState(LoginState state, UserAccount userAccount) {
-        this.state = state;
-        this.userAccount = userAccount;
-    }
+    static {
+        for(LoginState state : LoginState.values()){
+            LOGINS[state.ordinal()] = REGISTRY.counter("atm_logins_total", "Login attempts by outcome.", "state", state.name());
+        }
 
-    public LoginState getState() {
-        return state;
+        for(TransactionResult result : TransactionResult.values()){
+            WITHDRAWALS[result.ordinal()] = REGISTRY.counter("atm_withdrawals_total", "Withdrawals by outcome.", "result", result.name());
+        }
+
+        for(TransactionResult result : TransactionResult.values()){
+            DEPOSITS[result.ordinal()] = REGISTRY.counter("atm_deposits_total", "Deposits by outcome.", "result", result.name());
+        }
+
+        for(TransactionResult result : TransactionResult.values()){
+            TRANSFERS[result.ordinal()] = REGISTRY.counter("atm_transfers_total", "Transfers by outcome.", "result", result.name());
+        }
+
+        REGISTRY.gauge("atm_accounts", "Accounts in the store.", AccountManager::getAccountCount);
+        REGISTRY.gauge("atm_ledger_entries", "Transactions in the ledger.", AccountManager::getLedgerSize);
+        REGISTRY.gauge("atm_load_seconds", "Time loadAccounts took at startup.", () -> loadNanos, 1e-9);
+        REGISTRY.gauge("atm_load_bytes", "Size of the store loadAccounts opened.", () -> loadBytes);
+        for(StartupPhase phase : StartupPhase.values()){
+            REGISTRY.gauge("atm_startup_phase_seconds", "Time each startup phase took, 0 until it has ended.", "phase", phase.name(), () -> StartupTimeline.duration(phase), 1e-9);
+        }
+
+        REGISTRY.gauge("atm_settlement_seconds", "Time the last settlement took.", () -> settlementNanos, 1e-9);
+        REGISTRY.gauge("atm_settlement_mismatched_accounts", "Accounts the last settlement found a mismatch in.", () -> settlementMismatches);
+        REGISTRY.counter("atm_checkpoints_total", "Checkpoints that wrote something.", () -> checkpoints() == null ? 0 : checkpoints().getCheckpointCount());
+        REGISTRY.counter("atm_checkpoint_failures_total", "Checkpoints that failed, their changes stay in the journal.", () -> checkpoints() == null ? 0 : checkpoints().getFailureCount());
+        REGISTRY.counter("atm_checkpoint_written_bytes_total", "Bytes written to the store by checkpoints.", () -> checkpoints() == null ? 0 : checkpoints().getTotalBytesWritten());
+        REGISTRY.gauge("atm_checkpoint_last_written_bytes", "Bytes written by the last checkpoint.", () -> checkpoints() == null ? 0 : checkpoints().getLastBytesWritten());
+        REGISTRY.counter("atm_compactions_total", "Merges of the sealed journal segments.", () -> compactor() == null ? 0 : compactor().getCompactionCount());
+        REGISTRY.counter("atm_compaction_failures_total", "Merges of the sealed journal segments that failed.", () -> compactor() == null ? 0 : compactor().getFailureCount());
+        REGISTRY.counter("atm_compaction_reclaimed_bytes_total", "Journal bytes the merges freed.", () -> compactor() == null ? 0 : compactor().getReclaimedBytes());
+        REGISTRY.gauge("atm_journal_space_amplification", "Journal bytes on disk over the bytes one record per changed account would take.", () -> {
+            try {
+                return Math.round(AccountManager.getJournalSpaceAmplification() * 1000);
+            } catch (IOException e) {
+                return 0;
+            }
+        }, 1e-3);
     }
 
-    public UserAccount getUserAccount() {
-        return userAccount;
+    private AtmMetrics(){
     }
-}
 
-class AccountManager {
-    private static final String ACCOUNT_FILE_LOC = "data\\accounts.bin";
-    private static ArrayList<UserAccount> storedAccounts; // stored accounts
-    private static boolean hasChangeBeenMade; // a boolean to indicate whether it is necessary to write the accounts to the file
+    static void export(){
+        /*
+        always registers the registry with the platform mbean server (com.atm:type=Metrics, see it with jconsole). with -Datm.metrics.port=N
+        it is also served in the prometheus text format on http://localhost:N/metrics
+         */
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(REGISTRY), new ObjectName("com.atm:type=Metrics"));
+        } catch (InstanceAlreadyExistsException ignored) {
+            // exported already
+        } catch (JMException e) {
+            System.err.println("could not register the metrics with jmx: " + e);
+        }
+
+        int port = Integer.getInteger("atm.metrics.port", 0);
+        if(port <= 0){
+            return;
+        }
 
-    private AccountManager(){
-        hasChangeBeenMade = false;
-        storedAccounts = new ArrayList<>();
         try {
-            loadAccounts();
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                StringBuilder body = new StringBuilder(4096);
+                REGISTRY.writePrometheus(body);
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            });
+            server.setExecutor(null); // the dispatcher thread answers, a scrape is cheap
+            server.start();
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(null, "Failed to load accounts from file. It might have been deleted or corrupted.", "Load Failed", JOptionPane.ERROR_MESSAGE);
+            System.err.println("could not serve the metrics on port " + port + ": " + e.getMessage());
         }
     }
 
-    static void initializeAccounts(){
-        if(storedAccounts != null){
-            throw new IllegalStateException("accounts have already been initialized"); // initialize should only be called once
-        }
+    private static CheckpointScheduler checkpoints(){
+        return AccountManager.getCheckpoints();
+    }
 
-        new AccountManager();
+    private static JournalCompactor compactor(){
+        return AccountManager.getCompactor();
     }
+}
 
-    static AccountFetchState getUserAccount(long id, String pin){ // we get the account by the id and pin
-         LoginState state = LoginState.ACC_NOT_EXIST; // default state in case we don't break from the loop
-         UserAccount userAccount = null;
-         for(UserAccount user : storedAccounts){ // foreach account in
-             if(user.getId() == id){ // we check if the name matches the parameter
-                 if(user.getOwner().getPinCode().equals(pin)){ // we then check the pin
-                     userAccount = user;
-                     state = LoginState.SUCCESS; // if it does, we set the account to the match and set login success
-                 }
-                 else{
-                     state = LoginState.WRONG_PIN; // otherwise, the pin is wrong
-                 }
-
-                 break; // acc ids are unique therefore there isn't a possibility to have 2 accounts with the same name
-             }
-         }
+enum StartupPhase {
+    JVM("jvm"), // from the jvm starting to main
+    ASSETS("assets"), // decoding every image, in the background
+    ACCOUNTS("accounts"), // loading the store, replaying the journal and opening the ledger, in the background unless -Datm.startup.async=false
+    FRAME("frame"), // building the window and its components
+    FIRST_FRAME("first frame"), // the first frame painted
+    WELCOME_ANIMATION("welcome animation"),
+    READY("ready for login"); // the login panel is up
 
-         return new AccountFetchState(state, userAccount); // construct our object with the state and user account
+    private final String label;
+
+    StartupPhase(String label){
+        this.label = label;
     }
 
-    static long createNewAccount(String name, String pin){
-       setHasChangeBeenMade();
+    String getLabel() {
+        return label;
+    }
+}
+
+class StartupTimeline {
+    /*
+    when each phase of the atm's startup began and ended, in nanoseconds since the jvm started. the phases overlap: assets and accounts
+    load in the background while the window is built and plays its animation. once the atm is ready for a login and everything that
+    started has ended, the breakdown is printed in milliseconds, the durations are also gauges (atm_startup_phase_seconds)
+     */
+    private static final long ORIGIN = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime());
+    private static final AtomicLongArray STARTS = new AtomicLongArray(StartupPhase.values().length);
+    private static final AtomicLongArray ENDS = new AtomicLongArray(StartupPhase.values().length);
+    private static final AtomicBoolean REPORTED = new AtomicBoolean();
+
+    static {
+        for(StartupPhase phase : StartupPhase.values()){
+            STARTS.set(phase.ordinal(), -1);
+            ENDS.set(phase.ordinal(), -1);
+        }
 
-        UserAccount newAcc = new UserAccount(new AccountOwner(name, pin), 0.0);
-        storedAccounts.add(newAcc); // no need to do any checks here since this method is called only if ::getUserAccount state is ACC_NOT_EXIST
-        return newAcc.getId();
+        STARTS.set(StartupPhase.JVM.ordinal(), 0);
     }
 
-    static void saveAllToFile(){ // called upon exiting to save the stored accounts inside a file
-        if(hasChangeBeenMade){
-            try {
-                storeAccounts();
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(null, "Failed to save accounts to file.", "Save Failed", JOptionPane.ERROR_MESSAGE);
-            }
+    private StartupTimeline(){
+    }
+
+    static void begin(StartupPhase phase){
+        STARTS.compareAndSet(phase.ordinal(), -1, System.nanoTime() - ORIGIN);
+    }
+
+    static void end(StartupPhase phase){ // only the first end of a phase counts
+        if(ENDS.compareAndSet(phase.ordinal(), -1, System.nanoTime() - ORIGIN)){
+            reportIfDone();
         }
     }
 
-    static void setHasChangeBeenMade(){ // notifies the manager that I needs to update the file account
-        if(!hasChangeBeenMade){
-            hasChangeBeenMade = true;
+    static void at(StartupPhase phase){ // a moment rather than a span, only the first one counts
+        if(ENDS.get(phase.ordinal()) >= 0){
+            return; // the common case, this runs on every frame
+        }
+
+        long now = System.nanoTime() - ORIGIN;
+        if(STARTS.compareAndSet(phase.ordinal(), -1, now) && ENDS.compareAndSet(phase.ordinal(), -1, now)){
+            reportIfDone();
         }
     }
 
-    private static void loadAccounts() throws IOException {
-        BufferedInputStream reader = new BufferedInputStream(new FileInputStream(ACCOUNT_FILE_LOC)); // open the file for reading (throws if the file is not found)
-        byte[] buffer = new byte[32]; // allocate a 32 bytes buffer to read from the file into it (which is more than enough)
-        reader.read(buffer,0, Integer.BYTES);
-        int availableAcc = ByteBuffer.wrap(buffer).getInt(); // we read the first 4 bytes of the file into an int to determine how many accounts are saved
-        UserAccount acc;
-        int strLength;
-        String name, pinCode;
-        double accBalance;
-        long accId;
-        for(int i = 0; i < availableAcc; i++){ // if there are no accounts the for won't execute
-            reader.read(buffer,0, Integer.BYTES);
-            strLength = ByteBuffer.wrap(buffer).getInt(); // we read from the file the length of the stored string
-            reader.read(buffer, 0, strLength); // we read into the buffer strLength bytes
-            name = new String(buffer, 0 , strLength); // we construct a new string object from the array
-            reader.read(buffer,0,Integer.BYTES); // we read 4 bytes into the buffer representing the pin code
-            strLength = ByteBuffer.wrap(buffer).getInt(); // the name of the var is misleading but basically we serialize those 4 bytes into an int (the pin code)
-            pinCode = "";
-            if(strLength < 1000){ // take for example: 0123. parsing that as an int will give 123 so we need to check if the pin code int is less than 1000 (4 digits) and add a trailing '0' in case it is
-                pinCode += '0';
-            }
-
-            pinCode += String.valueOf(strLength); // convert the pin to a string
-            reader.read(buffer,0, Double.BYTES); // read into the buffer 8 bytes representing the account balance
-            accBalance = ByteBuffer.wrap(buffer).getDouble(); // get a double from those 8 bytes
-            reader.read(buffer, 0, Long.BYTES); // read into the buffer 8 bytes representing the account id
-            accId = ByteBuffer.wrap(buffer).getLong(); // get a long from those 8 bytes
-
-            acc = new UserAccount(accId, new AccountOwner(name, pinCode), accBalance); // we construct a new UserAccount object from the data
-            storedAccounts.add(acc); // and add it to the array
-        }
-    }
-
-    private static void storeAccounts() throws IOException {
-        /*
-        instead of storing the data as plain text, I took the approach to save it in a binary format (serialize it) in a big-endian order
-        I used the concepts of "FString" and "TArray" I worked with in the past from Unreal Engine that basically serializes the size of the array/string before the data itself
-        to know how much shall be deserialized when loading the file. This way, I'm able to store all the accounts in a single file using the least amount of space,
-        and it provides some layer of security since the pin code and account id are not written in a human-readable format
-         */
+    static long duration(StartupPhase phase){ // nanos, 0 until it has ended
+        long start = STARTS.get(phase.ordinal());
+        long end = ENDS.get(phase.ordinal());
+        return start < 0 || end < 0 ? 0 : end - start;
+    }
 
-        // if there is no accounts to save, do nothing
-        if(storedAccounts.size() == 0){
+    private static void reportIfDone(){
+        if(ENDS.get(StartupPhase.READY.ordinal()) < 0){
             return;
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(Double.BYTES); // allocate an 8 bytes buffer that is enough to hold int, long and double values at offset 0
-        BufferedOutputStream writer = new BufferedOutputStream(new FileOutputStream(ACCOUNT_FILE_LOC)); // if the file doesn't exist, it will create it
-        writer.write(buffer.putInt(0, storedAccounts.size()).array(), 0, Integer.BYTES); // write to the file 4 bytes representing the array length which will be used upon loading the file to determine how many accounts shall be deserialized
-        String name;
-        int pinCode;
-        double accBalance;
-        long accId;
-        for(UserAccount acc : storedAccounts){ // for each account in the array
-            name = acc.getOwner().getName();
-            writer.write(buffer.putInt(0, name.length()).array(), 0, Integer.BYTES); // we write to the file the size of the string as a 4 bytes int
-            writer.write(name.getBytes(StandardCharsets.UTF_8)); // we write the string itself
-            pinCode = Integer.parseInt(acc.getOwner().getPinCode()); // we parse the string into an int
-            writer.write(buffer.putInt(0, pinCode).array(), 0, Integer.BYTES); // we store it as 4 bytes
-            accBalance = acc.getBalance();
-            writer.write(buffer.putDouble(0, accBalance).array(), 0, Double.BYTES); // we store the account balance as 8 bytes
-            accId = acc.getId();
-            writer.write(buffer.putLong(0, accId).array(), 0, Long.BYTES); // we store the acc id as 8 bytes
+        for(StartupPhase phase : StartupPhase.values()){
+            if(STARTS.get(phase.ordinal()) >= 0 && ENDS.get(phase.ordinal()) < 0){
+                return; // the phase that ends last reports
+            }
+        }
+
+        if(REPORTED.compareAndSet(false, true)){
+            System.out.println(report());
+        }
+    }
+
+    static String report(){
+        StringBuilder out = new StringBuilder("startup, ms since the jvm started:");
+        for(StartupPhase phase : StartupPhase.values()){
+            long start = STARTS.get(phase.ordinal());
+            long end = ENDS.get(phase.ordinal());
+            if(start < 0){
+                continue; // didn't happen, like the accounts for a terminal that connects to a server
+            }
+
+            out.append(' ').append(phase.getLabel()).append(' ').append(TimeUnit.NANOSECONDS.toMillis(start));
+            if(end < 0){
+                out.append("-?");
+            }
+            else if(TimeUnit.NANOSECONDS.toMillis(end) != TimeUnit.NANOSECONDS.toMillis(start)){
+                out.append('-').append(TimeUnit.NANOSECONDS.toMillis(end));
+            }
+            out.append(',');
         }
 
-        writer.flush(); // flush and close to save our changes
-        writer.close();
+        out.setLength(out.length() - 1);
+        return out.toString();
     }
 }
 
-//endregion
+// endregion
 
 // region ASSETS_DATA
 
@@ -329,6 +5504,7 @@ class MyAssets{ // my assets to be used inside the program
     static final Image BALANCE_ICON;
     static final Image WITHDRAW_ICON;
     static final Image DEPOSIT_ICON;
+    static final Image TRANSFER_ICON;
     static final Image BACK_ARROW;
     static final Gif SCREEN_TURN_ON_ANIMATION;
     static final Gif SCREEN_TURN_OFF_ANIMATION;
@@ -342,6 +5518,7 @@ class MyAssets{ // my assets to be used inside the program
         Image BALANCE_ICON_TEMP;
         Image WITHDRAW_ICON_TEMP;
         Image DEPOSIT_ICON_TEMP;
+        Image TRANSFER_ICON_TEMP;
         Image BACK_ARROW_TEMP;
         Gif SCREEN_TURN_ON_ANIMATION_TEMP;
         Gif SCREEN_TURN_OFF_ANIMATION_TEMP;
@@ -427,6 +5604,14 @@ class MyAssets{ // my assets to be used inside the program
         }
         DEPOSIT_ICON = DEPOSIT_ICON_TEMP;
 
+        try {
+            TRANSFER_ICON_TEMP = new Image("assets\\transfer.png", 30, 30);
+        } catch (FileNotFoundException e) {
+            TRANSFER_ICON_TEMP = null;
+            JOptionPane.showMessageDialog(null, e.getMessage(), "File Not Found", JOptionPane.ERROR_MESSAGE);
+        }
+        TRANSFER_ICON = TRANSFER_ICON_TEMP;
+
         try {
             BACK_ARROW_TEMP = new Image("assets\\back.png", 40, 40);
         } catch (FileNotFoundException e) {
@@ -435,6 +5620,112 @@ class MyAssets{ // my assets to be used inside the program
         }
         BACK_ARROW = BACK_ARROW_TEMP;
     }
+
+    static Image[] all(){ // the ones that were found
+        return Arrays.stream(new Image[]{HEADER_LOGO, LOGO, EXIT, BALANCE_ICON, WITHDRAW_ICON, DEPOSIT_ICON, TRANSFER_ICON, BACK_ARROW,
+                SCREEN_TURN_ON_ANIMATION, SCREEN_TURN_OFF_ANIMATION, LOADING_SPINNER, LOADING_SPINNER_RED}).filter(Objects::nonNull).toArray(Image[]::new);
+    }
+}
+
+class AssetCache {
+    /*
+    every asset decoded once and shared by all the components that show it, so painting never goes near the disk or a decoder.
+    preload decodes them on a few background threads while the accounts load, icon waits for one that is still being decoded
+    (or decodes it there and then if nobody preloaded it). a png becomes an image compatible with the screen so drawing it is a plain blit.
+    a gif has to stay animated: its bytes are read once and the toolkit decodes the frames from memory as they play,
+    flushing it makes it play from its first frame again
+     */
+    private static final Map<String, CompletableFuture<ImageIcon>> ICONS = new ConcurrentHashMap<>();
+
+    private AssetCache(){
+    }
+
+    static CompletableFuture<Void> preload(Image... assets){ // completes once all of them are decoded
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(assets.length, Runtime.getRuntime().availableProcessors())), r -> {
+            Thread t = new Thread(r, "asset-loader");
+            t.setDaemon(true);
+            return t;
+        });
+
+        CompletableFuture<?>[] icons = new CompletableFuture<?>[assets.length];
+        for(int i = 0; i < assets.length; i++){
+            Image asset = assets[i];
+            CompletableFuture<ImageIcon> icon = new CompletableFuture<>();
+            CompletableFuture<ImageIcon> existing = ICONS.putIfAbsent(asset.getResourcePath(), icon);
+            if(existing == null){
+                pool.execute(() -> decodeInto(icon, asset));
+            }
+
+            icons[i] = existing == null ? icon : existing;
+        }
+
+        pool.shutdown(); // its threads go once the queue is empty
+        return CompletableFuture.allOf(icons);
+    }
+
+    static ImageIcon icon(Image asset){
+        CompletableFuture<ImageIcon> icon = ICONS.get(asset.getResourcePath());
+        if(icon == null){
+            CompletableFuture<ImageIcon> ours = new CompletableFuture<>();
+            icon = ICONS.putIfAbsent(asset.getResourcePath(), ours);
+            if(icon == null){
+                icon = ours;
+                decodeInto(ours, asset);
+            }
+        }
+
+        try {
+            return icon.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    static BufferedImage image(Image asset){ // a still image, gifs only come as icons
+        if(asset instanceof Gif){
+            throw new IllegalArgumentException("'" + asset.getResourcePath() + "' is animated, show it with an icon");
+        }
+
+        return (BufferedImage) icon(asset).getImage();
+    }
+
+    private static void decodeInto(CompletableFuture<ImageIcon> icon, Image asset){
+        try {
+            byte[] bytes = Files.readAllBytes(Paths.get(asset.getResourcePath()));
+            if(asset instanceof Gif){
+                icon.complete(new ImageIcon(Toolkit.getDefaultToolkit().createImage(bytes))); // ImageIcon waits for the first frame
+                return;
+            }
+
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes));
+            if(decoded == null){
+                throw new IOException("'" + asset.getResourcePath() + "' is not an image");
+            }
+
+            icon.complete(new ImageIcon(toCompatible(decoded)));
+        } catch (IOException e) {
+            icon.completeExceptionally(new UncheckedIOException(e));
+        } catch (RuntimeException e) {
+            icon.completeExceptionally(e);
+        }
+    }
+
+    private static BufferedImage toCompatible(BufferedImage decoded){
+        if(GraphicsEnvironment.isHeadless()){
+            return decoded;
+        }
+
+        GraphicsConfiguration screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        if(decoded.getColorModel().equals(screen.getColorModel(decoded.getTransparency()))){
+            return decoded;
+        }
+
+        BufferedImage compatible = screen.createCompatibleImage(decoded.getWidth(), decoded.getHeight(), decoded.getTransparency());
+        Graphics2D g = compatible.createGraphics();
+        g.drawImage(decoded, 0, 0, null);
+        g.dispose();
+        return compatible;
+    }
 }
 
 //endregion
@@ -511,20 +5802,307 @@ interface ITransaction{ // represents a transaction operation
     void onTransaction();
 }
 
+interface ISpritePainter { // draws a component's whole look, border included, from 0,0 with antialiasing on and the component's font
+    void paint(Graphics2D g, int width, int height);
+}
+
+interface ITween { // one animated property
+    void update(float progress); // 0 at the start of the animation, 1 at its end, eased
+}
+
+interface IAnimationEnd {
+    void onEnd(); // fires once the animation has reached its end, not when it is cancelled
+}
+
 // endregion
 
 // region CUSTOM_COMPONENTS
+class CountingRepaintManager extends RepaintManager {
+    /*
+    swing's own repaint manager, which already merges the dirty regions asked for in between two frames and paints only those.
+    this one also counts the repaint requests and the frames (paintDirtyRegions passes) with how long each took, so it shows
+    that an idle terminal paints nothing and what a click costs. components ask for a repaint when their look changes, never while painting
+     */
+    static void install(){
+        RepaintManager.setCurrentManager(new CountingRepaintManager());
+    }
+
+    @Override
+    public void addDirtyRegion(JComponent c, int x, int y, int w, int h) {
+        AtmMetrics.UI_REPAINT_REQUESTS.increment();
+        super.addDirtyRegion(c, x, y, w, h);
+    }
+
+    @Override
+    public void paintDirtyRegions() {
+        long start = System.nanoTime();
+        super.paintDirtyRegions();
+        StartupTimeline.at(StartupPhase.FIRST_FRAME);
+        AtmMetrics.UI_FRAMES.increment();
+        AtmMetrics.UI_PAINT_NANOS.record(System.nanoTime() - start);
+    }
+}
+
+
+enum SpriteState {
+    NORMAL,
+    PRESSED,
+    SELECTED,
+    DISABLED
+}
+
+class SpriteCache {
+    /*
+    the buttons draw the same few looks over and over: antialiased round rects, measured and sometimes rotated text. each look is rendered
+    once into a translucent image compatible with the screen (java2d keeps such an image in video memory once it is blitted a few times)
+    and then just blitted. a sprite is keyed by everything the look depends on: the type, size and state of the component, its text, icon,
+    colors and font, and the scale of the display, so a resize or a new color simply misses and renders the new look. the least recently
+    used sprites go once there are -Datm.sprites.size of them (0 paints everything directly), and all of them go when the look and feel
+    changes. edt only
+     */
+    private static final int CAPACITY = Integer.getInteger("atm.sprites.size", 256);
+    private static final Map<SpriteKey, BufferedImage> SPRITES = new LinkedHashMap<SpriteKey, BufferedImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SpriteKey, BufferedImage> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    static {
+        UIManager.addPropertyChangeListener(e -> {
+            if("lookAndFeel".equals(e.getPropertyName())){
+                clear();
+            }
+        });
+    }
+
+    private SpriteCache(){
+    }
+
+    static void paint(AbstractButton c, Graphics g, SpriteState state, ISpritePainter look){
+        int width = c.getWidth();
+        int height = c.getHeight();
+        if(width <= 0 || height <= 0){
+            return;
+        }
+
+        if(CAPACITY <= 0){
+            draw(c, g, look);
+            return;
+        }
+
+        Graphics2D g2 = (Graphics2D) g;
+        double scale = g2.getTransform().getScaleX(); // hidpi screens paint through a scaled graphics, the sprite has to have its pixels
+        SpriteKey key = new SpriteKey(c, state, scale);
+        BufferedImage sprite = SPRITES.get(key);
+        if(sprite == null){
+            AtmMetrics.UI_SPRITE_MISSES.increment();
+            sprite = render(c, g2, look, width, height, scale);
+            SPRITES.put(key, sprite);
+        }
+        else{
+            AtmMetrics.UI_SPRITE_HITS.increment();
+        }
+
+        g2.drawImage(sprite, 0, 0, width, height, null);
+    }
+
+    static void draw(JComponent c, Graphics g, ISpritePainter look){ // for a look that won't be seen again, like a size an animation goes through
+        Graphics2D gCopy = (Graphics2D) g.create();
+        gCopy.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        look.paint(gCopy, c.getWidth(), c.getHeight());
+        gCopy.dispose();
+    }
+
+    static void clear(){
+        SPRITES.clear();
+    }
+
+    private static BufferedImage render(JComponent c, Graphics2D g, ISpritePainter look, int width, int height, double scale){
+        int pixelWidth = (int) Math.ceil(width * scale);
+        int pixelHeight = (int) Math.ceil(height * scale);
+        GraphicsConfiguration configuration = c.getGraphicsConfiguration(); // null until it is on a screen, and when headless
+        BufferedImage sprite = configuration != null ? configuration.createCompatibleImage(pixelWidth, pixelHeight, Transparency.TRANSLUCENT)
+                : new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D spriteGraphics = sprite.createGraphics();
+        spriteGraphics.setRenderingHints(g.getRenderingHints()); // the same text antialiasing swing uses
+        spriteGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        spriteGraphics.scale(scale, scale);
+        spriteGraphics.setFont(c.getFont());
+        look.paint(spriteGraphics, width, height);
+        spriteGraphics.dispose();
+        return sprite;
+    }
+
+    private static final class SpriteKey {
+        private final Class<?> type;
+        private final int width;
+        private final int height;
+        private final double scale;
+        private final SpriteState state;
+        private final String text;
+        private final Icon icon;
+        private final int background;
+        private final int foreground;
+        private final Font font;
+
+        SpriteKey(AbstractButton c, SpriteState state, double scale){
+            type = c.getClass();
+            width = c.getWidth();
+            height = c.getHeight();
+            this.scale = scale;
+            this.state = state;
+            text = c.getText();
+            icon = c.getIcon();
+            background = c.getBackground().getRGB();
+            foreground = c.getForeground().getRGB();
+            font = c.getFont();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof SpriteKey)){
+                return false;
+            }
+
+            SpriteKey other = (SpriteKey) o;
+            return type == other.type && width == other.width && height == other.height && scale == other.scale && state == other.state
+                    && background == other.background && foreground == other.foreground && icon == other.icon
+                    && Objects.equals(text, other.text) && Objects.equals(font, other.font);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = type.hashCode();
+            hash = 31 * hash + width;
+            hash = 31 * hash + height;
+            hash = 31 * hash + Double.hashCode(scale);
+            hash = 31 * hash + state.hashCode();
+            hash = 31 * hash + background;
+            hash = 31 * hash + foreground;
+            hash = 31 * hash + Objects.hashCode(text);
+            return 31 * hash + Objects.hashCode(font);
+        }
+    }
+}
+
+enum Easing {
+    LINEAR,
+    EASE_OUT, // fast start, settles into place
+    EASE_IN_OUT; // slow start and slow end
+
+    float apply(float t){ // t and the result both go from 0 to 1
+        switch (this){
+            case EASE_OUT:
+                float u = 1 - t;
+                return 1 - u * u * u;
+            case EASE_IN_OUT:
+                if(t < 0.5f){
+                    return 4 * t * t * t;
+                }
+
+                float v = 2 - 2 * t;
+                return 1 - v * v * v / 2;
+            default:
+                return t;
+        }
+    }
+}
+
+class AnimationClock {
+    /*
+    every animation of the window runs off this one swing timer, ticking at the display's refresh rate (-Datm.animation.fps to force one).
+    an animation is a duration, an easing and a tween: each tick works out how far along it is from the nanoseconds since it started,
+    so it takes the same wall time however busy the edt is and always lands exactly on its end value. all the tweens of a tick
+    run in the same edt event, so what they change gets painted together in one repaint manager pass. the timer stops while nothing
+    is animating. edt only, like the components it animates
+     */
+    private static final List<Animation> ANIMATIONS = new ArrayList<>();
+    private static final javax.swing.Timer TIMER = new javax.swing.Timer(1000 / frameRate(), e -> tick());
+
+    private AnimationClock(){
+    }
+
+    static Animation animate(long durationMillis, Easing easing, ITween tween, IAnimationEnd onEnd){
+        Animation animation = new Animation(TimeUnit.MILLISECONDS.toNanos(durationMillis), easing, tween, onEnd);
+        ANIMATIONS.add(animation);
+        if(!TIMER.isRunning()){
+            TIMER.start();
+        }
+
+        return animation;
+    }
+
+    static int lerp(int from, int to, float progress){
+        return from + Math.round((to - from) * progress);
+    }
+
+    static Rectangle lerp(Rectangle from, Rectangle to, float progress){
+        return new Rectangle(lerp(from.x, to.x, progress), lerp(from.y, to.y, progress), lerp(from.width, to.width, progress), lerp(from.height, to.height, progress));
+    }
+
+    private static void tick(){
+        long now = System.nanoTime();
+        for(Animation animation : ANIMATIONS.toArray(new Animation[0])){ // a tween or an end event may start or cancel animations
+            if(animation.isRunning() && animation.step(now)){
+                ANIMATIONS.remove(animation);
+                if(animation.onEnd != null){
+                    animation.onEnd.onEnd();
+                }
+            }
+        }
+
+        if(ANIMATIONS.isEmpty()){
+            TIMER.stop();
+        }
+    }
+
+    private static int frameRate(){
+        int fps = Integer.getInteger("atm.animation.fps", 0);
+        if(fps <= 0 && !GraphicsEnvironment.isHeadless()){
+            fps = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate(); // 0 when unknown
+        }
+
+        return fps > 0 ? fps : 60;
+    }
+
+    static final class Animation {
+        private final long start;
+        private final long durationNanos;
+        private final Easing easing;
+        private final ITween tween;
+        private final IAnimationEnd onEnd;
+
+        private Animation(long durationNanos, Easing easing, ITween tween, IAnimationEnd onEnd){
+            start = System.nanoTime();
+            this.durationNanos = durationNanos;
+            this.easing = easing;
+            this.tween = tween;
+            this.onEnd = onEnd;
+        }
+
+        private boolean step(long now){ // true once it has reached its end
+            float t = durationNanos <= 0 ? 1 : Math.min(1f, (now - start) / (float) durationNanos);
+            tween.update(easing.apply(t));
+            return t >= 1;
+        }
+
+        boolean isRunning(){
+            return ANIMATIONS.contains(this);
+        }
+
+        void cancel(){ // leaves whatever it animates where it is
+            ANIMATIONS.remove(this);
+        }
+    }
+}
 
 class JImage extends JLabel{
     protected BufferedImage content;
     JImage(Image image, int x, int y){
         if(image != null){
             if(!(this instanceof JGif)){
-                try {
-                    content = ImageIO.read(new File(image.getResourcePath()));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+                content = AssetCache.image(image);
             }
 
             setBounds(x, y, image.getWidth(), image.getHeight());
@@ -552,7 +6130,7 @@ class JGif extends JImage{
     JGif(Gif gif, int x, int y, int playCount) {
         super(gif, x, y);
         if(gif != null){
-            setIcon(new ImageIcon(gif.getResourcePath()));
+            setIcon(AssetCache.icon(gif));
             this.playCount = playCount;
             this.duration = gif.getDuration();
             isShowing = false;
@@ -564,6 +6142,10 @@ class JGif extends JImage{
     }
 
     public void beginShow(boolean removeFromParent){
+        beginShow(removeFromParent, null);
+    }
+
+    public void beginShow(boolean removeFromParent, CompletableFuture<?> holdUntil){ // with holdUntil, keeps playing past its play count until it completes
         if(getIcon() == null){
             return;
         }
@@ -577,16 +6159,20 @@ class JGif extends JImage{
         }
 
         if(playCount > 0){
+            ((ImageIcon) getIcon()).getImage().flush(); // the gif is shared and may have played before, it starts from its first frame
             int timeOut = duration * playCount;
             javax.swing.Timer timer = new javax.swing.Timer(timeOut, e -> {
-                if(removeFromParent){
-                    getParent().remove(this);
-                }
-                isShowing = false;
                 ((javax.swing.Timer)e.getSource()).stop();
-                if(hideCallback != null){
-                    hideCallback.onHide();
-                }
+                whenDone(holdUntil, () -> {
+                    if(removeFromParent){
+                        getParent().remove(this);
+                    }
+                    isShowing = false;
+                    repaint();
+                    if(hideCallback != null){
+                        hideCallback.onHide();
+                    }
+                });
             });
 
             isShowing = true;
@@ -594,9 +6180,20 @@ class JGif extends JImage{
             timer.start();
         }
         else{
-            if(hideCallback != null){
-                hideCallback.onHide();
-            }
+            whenDone(holdUntil, () -> {
+                if(hideCallback != null){
+                    hideCallback.onHide();
+                }
+            });
+        }
+    }
+
+    private static void whenDone(CompletableFuture<?> holdUntil, Runnable action){ // right away if there is nothing to wait for, otherwise on the EDT once it completes
+        if(holdUntil == null || holdUntil.isDone()){
+            action.run();
+        }
+        else{
+            holdUntil.whenComplete((result, e) -> SwingUtilities.invokeLater(action));
         }
     }
 
@@ -659,6 +6256,7 @@ class InputField extends JTextField{
         characterLimit = charLimit;
         isValid = true;
         receivedFirstInput = false;
+        setOpaque(false); // see-through, swing paints what is behind it first
 
         addKeyListener(new KeyAdapter() {
             @Override
@@ -703,6 +6301,13 @@ class InputField extends JTextField{
                 if(!receivedFirstInput){
                     receivedFirstInput = true;
                 }
+
+                repaint(); // the border and the hint depend on the focus
+            }
+
+            @Override
+            public void focusLost(FocusEvent e) {
+                repaint();
             }
         });
     }
@@ -711,6 +6316,7 @@ class InputField extends JTextField{
         this.inputType = type;
         setText("");
         receivedFirstInput = false;
+        repaint(); // the hint changes
     }
 
     @Override
@@ -732,7 +6338,6 @@ class InputField extends JTextField{
         gCopy.setFont(new Font("sans-serif", Font.BOLD, fontSize));
         gCopy.drawString(inputType == LoginType.SIGN_IN ? "Account Id" : "Username", 20, textY);
         gCopy.dispose();
-        getParent().repaint();
     }
 
     @Override
@@ -742,7 +6347,6 @@ class InputField extends JTextField{
         gCopy.setColor(!isValid ? Color.red : hasFocus() ? MyColors.WHITE_100 : MyColors.DARK_GREY_237);
         gCopy.drawRoundRect(0,0,getWidth() - 1, getHeight() - 1, getHeight() - 1, getHeight() - 1);
         gCopy.dispose();
-        getParent().repaint();
     }
 
     public boolean checkAndUpdate(){
@@ -751,9 +6355,16 @@ class InputField extends JTextField{
             hasContent &= getText().length() == characterLimit;
         }
 
-        isValid = hasContent || !receivedFirstInput;
+        setValid(hasContent || !receivedFirstInput);
         return hasContent;
     }
+
+    private void setValid(boolean valid){ // the border only needs painting again if it changes color
+        if(isValid != valid){
+            isValid = valid;
+            repaint();
+        }
+    }
 }
 
 class PinInputField extends JPasswordField{
@@ -772,6 +6383,18 @@ class PinInputField extends JPasswordField{
         setEchoChar('\0');
         getInputMap().put(KeyStroke.getKeyStroke("BACK_SPACE"), "none");
         getInputMap().put(KeyStroke.getKeyStroke("DELETE"), "none");
+        setOpaque(false);
+        addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusGained(FocusEvent e) {
+                repaint(); // the border depends on the focus
+            }
+
+            @Override
+            public void focusLost(FocusEvent e) {
+                repaint();
+            }
+        });
     }
 
     public char getPinChar() {
@@ -789,13 +6412,19 @@ class PinInputField extends JPasswordField{
 
     public boolean checkAndUpdate(){
         boolean hasContent = pinChar != '\0';
-        isValid = hasContent || !receivedFirstInput;
+        setValid(hasContent || !receivedFirstInput);
         return hasContent;
     }
 
     public void setInvalid(){
-        isValid = false;
-        repaint();
+        setValid(false);
+    }
+
+    private void setValid(boolean valid){
+        if(isValid != valid){
+            isValid = valid;
+            repaint();
+        }
     }
 
     public void addValidatorEvent(Component previousFocusCandidate, Component nextFocusCandidate, IInputValidator validator){
@@ -849,12 +6478,12 @@ class PinInputField extends JPasswordField{
         gCopy.setStroke(new BasicStroke(1.3f));
         gCopy.drawRoundRect(0,0,getWidth() - 1, getHeight() - 1, getHeight() - 1, getHeight() - 1);
         gCopy.dispose();
-        getParent().repaint();
     }
 }
 
 class ArrowButton extends JButton{
     ArrowButton(){
+        setOpaque(false);
         addMouseListener(new MouseAdapter() {
             @Override
             public void mouseEntered(MouseEvent e) {
@@ -880,7 +6509,6 @@ class ArrowButton extends JButton{
         gCopy.drawLine(2,15,getWidth() - 12,5);
         gCopy.drawLine(2,15,getWidth() - 12,25);
         gCopy.dispose();
-        getParent().repaint();
     }
 
     @Override
@@ -916,7 +6544,6 @@ class LoginButton extends JButton{
         gCopy.setFont(new Font("sans-serif", Font.BOLD, 18));
         gCopy.drawString(getText(), (getWidth() - gCopy.getFontMetrics(gCopy.getFont()).stringWidth(getText()))/2, (getHeight() / 2) + 8);
         gCopy.dispose();
-        getParent().repaint();
     }
 
     @Override
@@ -926,7 +6553,6 @@ class LoginButton extends JButton{
         gCopy.setColor(hasFocus() ? MyColors.WHITE_100 : MyColors.DARK_GREY_237);
         gCopy.drawRoundRect(0,0,getWidth() - 1, getHeight() - 1, 15, 15);
         gCopy.dispose();
-        getParent().repaint();
     }
 
     public void setType(LoginType type) {
@@ -941,8 +6567,10 @@ class LoginButton extends JButton{
 }
 
 class GrowingButton extends JButton{
+    private static final long GROW_MILLIS = 400;
+    private static final Color SELECTED_TEXT = new Color(0, 255, 255, 100);
     private boolean hasGrownToFullSize;
-    private final int size;
+    private final Rectangle fullSize;
     GrowingButton(int x, int y, int finalW, int finalH){
 
         Rectangle intial = new Rectangle(x, y, finalW, finalH);
@@ -951,8 +6579,9 @@ class GrowingButton extends JButton{
         x += (finalW / 2);
         y += (finalH / 2);
         setBounds(x, y,0,0);
-        size = finalW;
+        fullSize = intial;
         hasGrownToFullSize = false;
+        setOpaque(false); // rounded and see-through
 
         addMouseListener(new MouseAdapter() {
             @Override
@@ -977,12 +6606,23 @@ class GrowingButton extends JButton{
 
     @Override
     protected void paintComponent(Graphics g) {
-        Graphics2D gCopy = (Graphics2D)g.create();
-        gCopy.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        if(hasGrownToFullSize){
+            SpriteCache.paint(this, g, isSelected() ? SpriteState.SELECTED : SpriteState.NORMAL, this::paintLook);
+        }
+        else{
+            SpriteCache.draw(this, g, this::paintLook); // every frame of the growth has a size of its own
+        }
+    }
+
+    @Override
+    protected void paintBorder(Graphics g) { // part of the look
+    }
+
+    private void paintLook(Graphics2D gCopy, int width, int height){
         gCopy.setColor(getBackground());
-        gCopy.fillRoundRect(0,0,getWidth(), getHeight(), 20, 20);
+        gCopy.fillRoundRect(0,0,width, height, 20, 20);
         gCopy.drawImage(((ImageIcon)getIcon()).getImage(),0,0,30,30,this);
-        gCopy.setColor(isSelected() ? new Color(0, 255, 255, 100) : Color.white);
+        gCopy.setColor(isSelected() ? SELECTED_TEXT : Color.white);
         AffineTransform affineTransform = new AffineTransform();
         affineTransform.rotate(Math.toRadians(-45), 0, 0);
         Font f = getFont().deriveFont(affineTransform).deriveFont(isSelected() ? getFont().getSize() + 2f : getFont().getSize());
@@ -991,49 +6631,24 @@ class GrowingButton extends JButton{
         int x,y;
         if(!isSelected()){
 
-            x = (getWidth() - me.stringWidth(getText())) / 2;
-            y = (getHeight() - me.getHeight() / 2) - me.getDescent();
+            x = (width - me.stringWidth(getText())) / 2;
+            y = (height - me.getHeight() / 2) - me.getDescent();
         }
         else{
-            x = 10 + ((getWidth() - 20) - me.stringWidth(getText())) / 2;
-            y = 10 + ((getHeight() - 20) - me.getHeight() / 2) - me.getDescent();
+            x = 10 + ((width - 20) - me.stringWidth(getText())) / 2;
+            y = 10 + ((height - 20) - me.getHeight() / 2) - me.getDescent();
         }
 
         gCopy.drawString(getText(), x,y);
-        gCopy.dispose();
-        getParent().repaint();
-    }
-
-    @Override
-    protected void paintBorder(Graphics g) {
-        if(!isSelected()){
-            return;
+        if(isSelected()){
+            gCopy.setPaint(getBackground());
+            gCopy.drawRoundRect(0,0,width - 1, height - 1, 20, 20);
         }
+    }
 
-        Graphics2D gCopy = (Graphics2D)g.create();
-        gCopy.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        gCopy.setPaint(getBackground());
-        gCopy.drawRoundRect(0,0,getWidth() - 1, getHeight() - 1, 20, 20);
-        gCopy.dispose();
-        getParent().repaint();
-    }
-
-    void grow(){
-        new javax.swing.Timer(1, e -> {
-            Rectangle bounds = getBounds();
-            bounds.x -= 1;
-            bounds.width += 2;
-            bounds.y -= 1;
-            bounds.height += 2;
-            if(bounds.width < size){
-                setBounds(bounds);
-                repaint();
-            }
-            else{
-                ((javax.swing.Timer)e.getSource()).stop();
-                hasGrownToFullSize = true;
-            }
-        }).start();
+    void grow(){ // from a dot in its middle to its full size
+        Rectangle dot = getBounds();
+        AnimationClock.animate(GROW_MILLIS, Easing.EASE_OUT, t -> setBounds(AnimationClock.lerp(dot, fullSize, t)), () -> hasGrownToFullSize = true);
     }
 }
 
@@ -1072,28 +6687,37 @@ class LogoutLabel extends JLabel{
 
 class DisplayLabel extends JLabel{
     private boolean isValid;
-    DisplayLabel(String s){
-        super(s, JLabel.CENTER);
+    private long amount; // what the display shows, in cents, so that nobody has to parse the text back
+    DisplayLabel(){
+        super("$0", JLabel.CENTER);
         isValid = true;
+        amount = 0;
+        setOpaque(false);
+    }
 
-        addPropertyChangeListener(new PropertyChangeListener() {
-            @Override
-            public void propertyChange(PropertyChangeEvent evt) {
-                if(evt.getPropertyName() == "text"){
-                    if(getText().length() == 1 || getText().charAt(1) == '-'){
-                        reset();
-                    }
-                }
-            }
-        });
+    public long getAmount() {
+        return amount;
     }
 
-    public void setValid(boolean valid) {
-        isValid = valid;
-        repaint();
+    public void setAmount(long amount) {
+        if(amount <= 0){ // going below 0 (or erasing the last digit) resets the display
+            reset();
+            return;
+        }
+
+        this.amount = amount;
+        setText("$" + Money.toDollars(amount)); // only whole dollars can be entered
+    }
+
+    public void setValid(boolean valid) { // the validator runs on every key, the border only needs painting again if it changes color
+        if(isValid != valid){
+            isValid = valid;
+            repaint();
+        }
     }
 
     void reset(){
+        amount = 0;
         setText("$0");
         setValid(true);
     }
@@ -1105,7 +6729,6 @@ class DisplayLabel extends JLabel{
         gCopy.setColor(isValid ? MyColors.DARK_GREY_237: Color.red);
         gCopy.drawRoundRect(0,0,getWidth() - 1, getHeight() - 1, getHeight() - 1, getHeight() - 1);
         gCopy.dispose();
-        getParent().repaint();
     }
 }
 
@@ -1114,23 +6737,21 @@ class BackButton extends JButton{
     private boolean pressed = false;
     BackButton(IInputValidator validator){
         setBackground(new Color(128, 24, 24));
+        setOpaque(false);
         addActionListener(e -> {
-            String news = output.getText().substring(0, output.getText().length() - 1);
-            output.setText(news);
+            output.setAmount(Money.ofDollars(Money.toDollars(output.getAmount()) / 10)); // erase the last digit
             validator.runValidator();
         });
 
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                pressed = true;
-                repaint();
+                setPressed(true);
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                pressed = false;
-                repaint();
+                setPressed(false);
             }
         });
     }
@@ -1139,6 +6760,13 @@ class BackButton extends JButton{
         this.output = output;
     }
 
+    private void setPressed(boolean pressed){
+        if(this.pressed != pressed){
+            this.pressed = pressed;
+            repaint();
+        }
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         Graphics2D gCopy = (Graphics2D)g.create();
@@ -1146,9 +6774,8 @@ class BackButton extends JButton{
         gCopy.setColor(getBackground());
         gCopy.fillRoundRect(0, 0, getWidth(), getHeight(), 20, 20);
         Image back = MyAssets.BACK_ARROW;
-        gCopy.drawImage(new ImageIcon(back.getResourcePath()).getImage(),10,10,back.getWidth(),back.getHeight(),this);
+        gCopy.drawImage(AssetCache.image(back),10,10,back.getWidth(),back.getHeight(),this);
         gCopy.dispose();
-        getParent().repaint();
     }
 
     protected void paintBorder(Graphics g) {
@@ -1163,7 +6790,6 @@ class BackButton extends JButton{
             gCopy.drawRoundRect(0, 0, getWidth() - 1, getHeight() - 1, 20, 20);
         }
         gCopy.dispose();
-        getParent().repaint();
     }
 }
 
@@ -1171,18 +6797,26 @@ class SubmitButton extends JButton{
     private boolean pressed = false;
     SubmitButton(){
         setBackground(new Color(13, 70, 13, 255));
+        setOpaque(false);
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                pressed = true;
+                setPressed(true);
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                pressed = false;
+                setPressed(false);
             }
         });
     }
+
+    private void setPressed(boolean pressed){
+        if(this.pressed != pressed){
+            this.pressed = pressed;
+            repaint();
+        }
+    }
     @Override
     protected void paintComponent(Graphics g) {
         Graphics2D gCopy = (Graphics2D)g.create();
@@ -1190,7 +6824,6 @@ class SubmitButton extends JButton{
         gCopy.setColor(getBackground());
         gCopy.fillRoundRect(0,0,getWidth(),getHeight(),20,20);
         gCopy.dispose();
-        getParent().repaint();
     }
 
     @Override
@@ -1207,39 +6840,39 @@ class SubmitButton extends JButton{
                 gCopy.drawRoundRect(0, 0, getWidth() - 1, getHeight() - 1, 20, 20);
             }
             gCopy.dispose();
-            getParent().repaint();
         }
     }
 }
 
 class BillButton extends JButton{
     private boolean pressed = false;
+    private final long value; // in cents
     BillButton(String s, DisplayLabel output, IInputValidator validator){
         super(s);
+        value = Money.ofDollars(Integer.parseInt(s.substring(1))); // "$20" -> 2000
         setBackground(MyColors.YELLOW_25);
         setForeground(Color.white);
+        setOpaque(false);
         addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
-                String aa = output.getText().substring(1);
                 if(SwingUtilities.isLeftMouseButton(e)){
-                    long a = Long.parseLong(aa) + Integer.parseInt(getText().substring(1));
-                    output.setText("$" + a);
+                    if(output.getAmount() <= Money.ofDollars(Money.MAX_DOLLARS) - value){ // the display is full otherwise
+                        output.setAmount(output.getAmount() + value);
+                    }
                     validator.runValidator();
                 }
                 else if(SwingUtilities.isRightMouseButton(e)){
-                    long a = Long.parseLong(aa) - Integer.parseInt(getText().substring(1));
-                    output.setText("$" + a);
+                    output.setAmount(output.getAmount() - value);
                     validator.runValidator();
                 }
             }
 
             @Override
             public void mousePressed(MouseEvent e) {
-                setBackground(Color.yellow);
+                setBackground(Color.yellow); // the colors repaint it when they change
                 setForeground(Color.BLACK);
                 pressed = true;
-                repaint();
             }
 
             @Override
@@ -1247,38 +6880,34 @@ class BillButton extends JButton{
                 setBackground(MyColors.YELLOW_25);
                 setForeground(Color.white);
                 pressed = false;
-                repaint();
             }
         });
     }
 
     @Override
     protected void paintComponent(Graphics g) {
-        Graphics2D gCopy = (Graphics2D)g.create();
-        gCopy.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        SpriteCache.paint(this, g, !isEnabled() ? SpriteState.DISABLED : pressed ? SpriteState.PRESSED : SpriteState.NORMAL, this::paintLook);
+    }
+
+    @Override
+    protected void paintBorder(Graphics g) { // part of the look
+    }
+
+    private void paintLook(Graphics2D gCopy, int width, int height){
         gCopy.setColor(getBackground());
-        gCopy.fillRoundRect(0, 0, getWidth(), getHeight(), 20, 20);
-        int x = (getWidth() - getFontMetrics(getFont()).stringWidth(getText())) / 2;
-        int y = (getHeight()) / 2;
+        gCopy.fillRoundRect(0, 0, width, height, 20, 20);
+        int x = (width - gCopy.getFontMetrics().stringWidth(getText())) / 2;
+        int y = height / 2;
         gCopy.setColor(getForeground());
         gCopy.drawString(getText(), x, y);
-        gCopy.dispose();
-        getParent().repaint();
-    }
-
-    protected void paintBorder(Graphics g) {
-        Graphics2D gCopy = (Graphics2D)g.create();
-        gCopy.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         gCopy.setColor(pressed ? getBackground().darker().darker() : getBackground().brighter());
         gCopy.setStroke(new BasicStroke(3));
         if(pressed){
-            gCopy.drawRoundRect(3, 3, getWidth() - 7, getHeight() - 7, 20, 20);
+            gCopy.drawRoundRect(3, 3, width - 7, height - 7, 20, 20);
         }
         else {
-            gCopy.drawRoundRect(0, 0, getWidth() - 1, getHeight() - 1, 20, 20);
+            gCopy.drawRoundRect(0, 0, width - 1, height - 1, 20, 20);
         }
-        gCopy.dispose();
-        getParent().repaint();
     }
 }
 
@@ -1286,87 +6915,78 @@ class NumButton extends JButton{
     private boolean pressed = false;
     private final int val;
     private DisplayLabel output;
-    private UserAccount user;
     NumButton(String s, IInputValidator validator){
         super(s);
         val = Integer.parseInt(s);
         setBackground(MyColors.DARK_GREY_237);
         setForeground(Color.white);
+        setOpaque(false);
         addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                if(output.getText().length() == 18){
+                long amount = Money.appendDigit(output.getAmount(), val);
+                if(amount < 0){ // the display is full
                     return;
                 }
 
-                String val = output.getText() + getText();
-
-                if(output.getText().length() == 2 && output.getText().charAt(1) == '0'){
-                    val = val.charAt(0)  + val.substring(2);
-                }
-                output.setText(val);
+                output.setAmount(amount);
                 validator.runValidator();
             }
         });
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                setBackground(MyColors.DARK_GREY_237);
                 setForeground(Color.BLACK);
-                pressed = true;
-                repaint();
+                setPressed(true);
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                setBackground(MyColors.DARK_GREY_237);
                 setForeground(Color.white);
-                pressed = false;
-                repaint();
+                setPressed(false);
             }
         });
     }
 
-    void bind(DisplayLabel output, UserAccount user){
+    private void setPressed(boolean pressed){ // the background stays the same, only the border shows it
+        if(this.pressed != pressed){
+            this.pressed = pressed;
+            repaint();
+        }
+    }
+
+    void bind(DisplayLabel output){
         setOutput(output);
-        setUser(user);
     }
 
     private void setOutput(DisplayLabel output) {
         this.output = output;
     }
 
-    private void setUser(UserAccount user) {
-        this.user = user;
+    @Override
+    protected void paintComponent(Graphics g) {
+        SpriteCache.paint(this, g, !isEnabled() ? SpriteState.DISABLED : pressed ? SpriteState.PRESSED : SpriteState.NORMAL, this::paintLook);
     }
 
     @Override
-    protected void paintComponent(Graphics g) {
-        Graphics2D gCopy = (Graphics2D)g.create();
-        gCopy.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    protected void paintBorder(Graphics g) { // part of the look
+    }
+
+    private void paintLook(Graphics2D gCopy, int width, int height){
         gCopy.setColor(getBackground());
-        gCopy.fillRoundRect(0, 0, getWidth(), getHeight(), 20, 20);
-        int x = (getWidth() - getFontMetrics(getFont()).stringWidth(getText())) / 2;
-        int y = (getHeight()) / 2;
+        gCopy.fillRoundRect(0, 0, width, height, 20, 20);
+        int x = (width - gCopy.getFontMetrics().stringWidth(getText())) / 2;
+        int y = height / 2;
         gCopy.setColor(Color.white);
         gCopy.drawString(getText(), x, y);
-        gCopy.dispose();
-        getParent().repaint();
-    }
-
-    protected void paintBorder(Graphics g) {
-        Graphics2D gCopy = (Graphics2D)g.create();
-        gCopy.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         gCopy.setColor(pressed ? getBackground().darker().darker().darker() : getBackground().brighter().brighter());
         gCopy.setStroke(new BasicStroke(3));
         if(pressed){
-            gCopy.drawRoundRect(3, 3, getWidth() - 7, getHeight() - 7, 20, 20);
+            gCopy.drawRoundRect(3, 3, width - 7, height - 7, 20, 20);
         }
         else {
-            gCopy.drawRoundRect(0, 0, getWidth() - 1, getHeight() - 1, 20, 20);
+            gCopy.drawRoundRect(0, 0, width - 1, height - 1, 20, 20);
         }
-        gCopy.dispose();
-        getParent().repaint();
     }
 }
 
@@ -1375,7 +6995,8 @@ class NumButton extends JButton{
 class NumPad extends JPanel{
     private DisplayLabel output;
     private UserAccount user;
-    private boolean checkAmount;
+    private Operation operation;
+    private LongSupplier transferTarget; // id of the account a transfer goes to, -1 while there isn't a complete one
     private final NumButton num0;
     private final NumButton num1;
     private final NumButton num2;
@@ -1390,8 +7011,14 @@ class NumPad extends JPanel{
     private final BackButton back;
     private final IInputValidator validator;
     private ITransaction transactionCallback;
-
-    NumPad(){
+    private boolean pending; // a transaction was submitted and hasn't been answered yet
+    static final ExecutorService TRANSACTIONS = Executors.newSingleThreadExecutor(r -> { // in order, so a balance asked for after a transaction shows it
+        Thread t = new Thread(r, "atm-transaction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    NumPad(IAtmService engine){
         int w, h;
         w = h = 60;
         setLayout(null);
@@ -1399,21 +7026,13 @@ class NumPad extends JPanel{
         validator = new InputValidator() {
             @Override
             public boolean isValid() {
-                double amount = Double.parseDouble(output.getText().substring(1));
-                if(amount == 0){
-                    return false;
-                }
-                if(checkAmount){
-                    return !(amount > user.getBalance());
-                }
-
-                return true;
+                return isValidAmount(output.getAmount(), user.getBalance(), operation != Operation.DEPOSIT) && (operation != Operation.TRANSFER || transferTarget.getAsLong() >= 0);
             }
 
             @Override
             public void doIfValid() {
                 output.setValid(true);
-                sub.setEnabled(true);
+                sub.setEnabled(!pending);
             }
 
             @Override
@@ -1449,15 +7068,25 @@ class NumPad extends JPanel{
         num9.setBounds(140, 140, w, h);
 
         sub.addActionListener(e -> {
-            double amount = Double.parseDouble(output.getText().substring(1));
-            if(checkAmount){
-                user.setBalance(user.getBalance() - amount);
-            }
-            else{
-                user.setBalance(user.getBalance() + amount);
-            }
-
-            transactionCallback.onTransaction();
+            sub.setEnabled(false); // one transaction at a time, the validator leaves it off until this one is answered
+            pending = true;
+            Operation op = operation;
+            long amount = output.getAmount();
+            long target = op == Operation.TRANSFER ? transferTarget.getAsLong() : -1; // read here, the field belongs to the EDT
+            CompletableFuture.supplyAsync(() -> { // the journal fsync or the round trip to the server never blocks the EDT
+                try {
+                    switch (op) {
+                        case WITHDRAW:
+                            return engine.withdraw(user, amount);
+                        case DEPOSIT:
+                            return engine.deposit(user, amount);
+                        default:
+                            return engine.transfer(user, target, amount);
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, TRANSACTIONS).whenComplete((result, ex) -> SwingUtilities.invokeLater(() -> showResult(result, ex)));
         });
 
         add(back);
@@ -1474,31 +7103,61 @@ class NumPad extends JPanel{
         add(num9);
     }
 
-    public void bind(DisplayLabel output, UserAccount user, ITransaction onTransaction) {
+    public void bind(DisplayLabel output, UserAccount user, LongSupplier transferTarget, ITransaction onTransaction) {
         this.output = output;
         this.user = user;
+        this.transferTarget = transferTarget;
         this.transactionCallback = onTransaction;
-        num0.bind(output, user);
-        num1.bind(output, user);
-        num2.bind(output, user);
-        num3.bind(output, user);
-        num4.bind(output, user);
-        num5.bind(output, user);
-        num6.bind(output, user);
-        num7.bind(output, user);
-        num8.bind(output, user);
-        num9.bind(output, user);
+        num0.bind(output);
+        num1.bind(output);
+        num2.bind(output);
+        num3.bind(output);
+        num4.bind(output);
+        num5.bind(output);
+        num6.bind(output);
+        num7.bind(output);
+        num8.bind(output);
+        num9.bind(output);
         back.setOutput(output);
     }
 
-    public void enableChecking(boolean enable){
-        checkAmount = enable;
+    private void showResult(TransactionResult result, Throwable failure){ // on the EDT, once the transaction is answered
+        pending = false;
+        if(failure != null){
+            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+            if(!(cause instanceof UncheckedIOException)){
+                throw new CompletionException(cause);
+            }
+
+            JOptionPane.showMessageDialog(this, "The transaction could not be confirmed (" + cause.getCause().getMessage() + "). Please check your balance.", "Transaction Not Confirmed", JOptionPane.ERROR_MESSAGE);
+            result = TransactionResult.SUCCESS; // the balance may have changed, go back so it gets shown again
+        }
+
+        if(result != TransactionResult.SUCCESS){
+            JOptionPane.showMessageDialog(this, result == TransactionResult.INSUFFICIENT_FUNDS ? "Insufficient funds." : result == TransactionResult.INVALID_TARGET ? "There is no other account with this id." : "Invalid amount.", "Transaction Failed", JOptionPane.ERROR_MESSAGE);
+            validator.runValidator(); // the balance might have changed since the validator ran
+            return;
+        }
+
+        transactionCallback.onTransaction();
+    }
+
+    public void setOperation(Operation operation){ // withdrawals and transfers can't go over the balance
+        this.operation = operation;
         sub.setEnabled(false);
     }
 
     public IInputValidator getValidator(){
         return validator;
     }
+
+    static boolean isValidAmount(long amount, long balance, boolean checkBalance){ // a withdrawal or a transfer can't go over the balance, a deposit just can't be empty
+        if(amount == 0){
+            return false;
+        }
+
+        return !checkBalance || amount <= balance;
+    }
 }
 
 // endregion
@@ -1516,10 +7175,18 @@ class LoginPanel extends JPanel{
     private LoginType loginType;
     private JLabel modeSwitcher;
     private final JLabel pinLabel;
+    private static final ExecutorService LOGINS = Executors.newSingleThreadExecutor(r -> { // a terminal signs in one user at a time
+        Thread t = new Thread(r, "atm-login");
+        t.setDaemon(true);
+        return t;
+    });
     private JGif loadingSpinner;
+    private CompletableFuture<Runnable> request; // the sign in or sign up running off the EDT, completes with what to show once the spinner is gone
     private IAccountEvent loginCallback;
+    private final IAtmService engine;
 
-    LoginPanel(Rectangle bounds){
+    LoginPanel(Rectangle bounds, IAtmService engine){
+        this.engine = engine;
         setLayout(null);
         setOpaque(false);
         setBounds(bounds);
@@ -1585,7 +7252,17 @@ class LoginPanel extends JPanel{
         proceedButton.addActionListener(e -> {
             proceedButton.setEnabled(false);
             modeSwitcher.setEnabled(false);
-            loadingSpinner.beginShow(false);
+            LoginType type = loginType;
+            String content = userInput.getText();
+            String pin = "" + pinInput1.getPinChar() + pinInput2.getPinChar() + pinInput3.getPinChar() + pinInput4.getPinChar();
+            request = CompletableFuture.supplyAsync(() -> { // hashing the pin, waiting for the accounts to load or for the server never blocks the EDT
+                try {
+                    return login(type, content, pin);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, LOGINS);
+            loadingSpinner.beginShow(false, request); // the spinner stays until the answer is there
             repaint();
             requestFocus();
         });
@@ -1687,37 +7364,15 @@ class LoginPanel extends JPanel{
         int loadingY = pinInputY + 65;
         loadingSpinner = new JGif(loading, loadingX, loadingY, 5);
         loadingSpinner.addOnHideEvent(()->{
-            String content = userInput.getText();
-            String pin = "";
-            pin += pinInput1.getPinChar();
-            pin += pinInput2.getPinChar();
-            pin += pinInput3.getPinChar();
-            pin += pinInput4.getPinChar();
-            if(loginType == LoginType.SIGN_UP){
-                long accNb = AccountManager.createNewAccount(content, pin);
-                JOptionPane.showMessageDialog(this, "Account created! Your account ID is " + accNb + ". Store it somewhere safe!", "Account Created", JOptionPane.INFORMATION_MESSAGE);
-                setLoginMode();
-                userInput.setText(String.valueOf(accNb));
-                repaint();
-            }
-            else {
-                AccountFetchState state = AccountManager.getUserAccount(Long.parseLong(content), pin);
-                LoginState loginState = state.getState();
-                if (loginState != LoginState.SUCCESS) {
-                    if (loginState == LoginState.ACC_NOT_EXIST) {
-                        JOptionPane.showMessageDialog(this, "This account does not exist. If you don't have one, please register.", "Account Not Found", JOptionPane.INFORMATION_MESSAGE);
-                    } else {
-                        setInvalidPin();
-                        repaint();
-                    }
-
-                    proceedButton.setEnabled(true);
-                } else {
-                    setValidPin();
-                    if (loginCallback != null) {
-                        loginCallback.onLogin(new LoginEventArgs(state.getUserAccount()));
-                    }
+            try {
+                request.join().run(); // complete by now, the spinner waited for it
+            } catch (CompletionException ex) {
+                if(!(ex.getCause() instanceof UncheckedIOException)){
+                    throw ex;
                 }
+
+                JOptionPane.showMessageDialog(this, "Could not reach the bank: " + ex.getCause().getCause().getMessage(), "Connection Failed", JOptionPane.ERROR_MESSAGE);
+                proceedButton.setEnabled(true);
             }
 
             modeSwitcher.setEnabled(true);
@@ -1785,6 +7440,43 @@ class LoginPanel extends JPanel{
         }
     }
 
+    private Runnable login(LoginType type, String content, String pin) throws IOException { // runs off the EDT, either creates the account or signs in, returns what to show once the spinner is gone
+        if(type == LoginType.SIGN_UP){
+            long accNb = engine.createAccount(content, pin);
+            return () -> {
+                JOptionPane.showMessageDialog(this, "Account created! Your account ID is " + accNb + ". Store it somewhere safe!", "Account Created", JOptionPane.INFORMATION_MESSAGE);
+                setLoginMode();
+                userInput.setText(String.valueOf(accNb));
+                repaint();
+            };
+        }
+
+        AccountFetchState state = engine.authenticate(Long.parseLong(content), pin);
+        return () -> showLogin(state);
+    }
+
+    private void showLogin(AccountFetchState state){
+        LoginState loginState = state.getState();
+        if (loginState != LoginState.SUCCESS) {
+            if (loginState == LoginState.ACC_NOT_EXIST) {
+                JOptionPane.showMessageDialog(this, "This account does not exist. If you don't have one, please register.", "Account Not Found", JOptionPane.INFORMATION_MESSAGE);
+            } else if (loginState == LoginState.LOCKED_OUT) {
+                long seconds = (state.getRetryAfterMillis() + 999) / 1000;
+                JOptionPane.showMessageDialog(this, "Too many wrong PINs. Please try again in " + (seconds >= 120 ? (seconds + 59) / 60 + " minutes." : seconds + " seconds."), "Account Locked", JOptionPane.WARNING_MESSAGE);
+            } else {
+                setInvalidPin();
+                repaint();
+            }
+
+            proceedButton.setEnabled(true);
+        } else {
+            setValidPin();
+            if (loginCallback != null) {
+                loginCallback.onLogin(new LoginEventArgs(state.getUserAccount()));
+            }
+        }
+    }
+
     private void setLoginMode(){
         loginType = LoginType.SIGN_IN;
         signInLabel.setText("Sign In");
@@ -1821,22 +7513,23 @@ class LoginPanel extends JPanel{
         }
     }
 }
-enum Operation{
-    WITHDRAW,
-    DEPOSIT
-}
-
 class InterfacePanel extends JPanel{
+    private static final int MINI_STATEMENT_SIZE = 6; // transactions shown under the balance
+    private static final long SLIDE_MILLIS = 350; // sliding to the operation and back, and the frame growing or shrinking with it
     private final Component container;
     private final UserAccount user;
+    private final IAtmService engine;
     private final JLabel welcomeLabel;
     private final GrowingButton checkBalance;
     private final GrowingButton withdraw;
     private final GrowingButton deposit;
+    private final GrowingButton transfer;
     private final ArrowButton goBack;
     private final JLabel balance;
+    private final JLabel statement; // mini statement, shown with the balance
     private final JLabel opLabel;
     private final DisplayLabel display;
+    private final InputField transferTarget; // account the money goes to, only shown for a transfer
     private Operation op;
     private final BillButton one;
     private final BillButton five;
@@ -1846,12 +7539,15 @@ class InterfacePanel extends JPanel{
     private final BillButton hundred;
     private final NumPad numpad;
     private final JLabel transactionSuccess;
+    private AnimationClock.Animation slide;
+    private AnimationClock.Animation frameResize;
 
-    InterfacePanel(NumPad n, Rectangle bounds, UserAccount account){
+    InterfacePanel(NumPad n, Rectangle bounds, UserAccount account, IAtmService engine){
         setLayout(null);
         setOpaque(false);
         setBounds(bounds);
         user = account;
+        this.engine = engine;
         numpad = n;
         container = n.getParent().getParent().getParent().getParent();
 
@@ -1871,21 +7567,26 @@ class InterfacePanel extends JPanel{
         int space = 20;
         checkBalance = new GrowingButton(growingButtonX, growingButtonY, growingButtonWidth, growingButtonHeight);
         withdraw = new GrowingButton(growingButtonX + space + growingButtonWidth, growingButtonY, growingButtonWidth, growingButtonHeight);
-        deposit = new GrowingButton(growingButtonX + (growingButtonWidth / 2), growingButtonY + space + growingButtonHeight, growingButtonWidth, growingButtonHeight);
+        deposit = new GrowingButton(growingButtonX, growingButtonY + space + growingButtonHeight, growingButtonWidth, growingButtonHeight);
+        transfer = new GrowingButton(growingButtonX + space + growingButtonWidth, growingButtonY + space + growingButtonHeight, growingButtonWidth, growingButtonHeight);
 
         checkBalance.setBackground(new Color(255,0,0, 140));
         withdraw.setBackground(new Color(0,255,0, 140));
         deposit.setBackground(new Color(0,0,255, 140));
+        transfer.setBackground(new Color(255,165,0, 140));
 
         checkBalance.setText("Balance");
-        checkBalance.setIcon(new ImageIcon(MyAssets.BALANCE_ICON.getResourcePath()));
+        checkBalance.setIcon(AssetCache.icon(MyAssets.BALANCE_ICON));
         checkBalance.setFont(new Font("sans-serif", Font.BOLD, 20));
         withdraw.setText("Withdraw");
-        withdraw.setIcon(new ImageIcon(MyAssets.WITHDRAW_ICON.getResourcePath()));
+        withdraw.setIcon(AssetCache.icon(MyAssets.WITHDRAW_ICON));
         withdraw.setFont(new Font("sans-serif", Font.BOLD, 20));
         deposit.setText("Deposit");
-        deposit.setIcon(new ImageIcon(MyAssets.DEPOSIT_ICON.getResourcePath()));
+        deposit.setIcon(AssetCache.icon(MyAssets.DEPOSIT_ICON));
         deposit.setFont(new Font("sans-serif", Font.BOLD, 20));
+        transfer.setText("Transfer");
+        transfer.setIcon(AssetCache.icon(MyAssets.TRANSFER_ICON));
+        transfer.setFont(new Font("sans-serif", Font.BOLD, 20));
         goBack = new ArrowButton();
         goBack.setBounds(360, getHeight() - 35, 30, 30);
 
@@ -1893,31 +7594,27 @@ class InterfacePanel extends JPanel{
             goBack.setVisible(false);
             revalidate();
             restore();
-            new Timer(1, ev -> {
-                Rectangle bb = container.getBounds();
-                bb.height -= 10;
-                if(bb.height >= 520){
-                    container.setBounds(bb);
-                    container.repaint();
-                }
-                else{
-                    ((Timer)ev.getSource()).stop();
-                }
-            }).start();
+            resizeFrame(520);
         });
 
 
         balance = new JLabel("", JLabel.CENTER);
         balance.setForeground(MyColors.YELLOW_25);
         balance.setFont(new Font("sans-serif", Font.BOLD, 15));
-        balance.setBounds(410,(getHeight() - 250) / 2,250,250);
+        balance.setBounds(410,20,250,40);
+
+        statement = new JLabel("", JLabel.CENTER);
+        statement.setForeground(MyColors.YELLOW_25);
+        statement.setFont(new Font("monospaced", Font.PLAIN, 13));
+        statement.setVerticalAlignment(JLabel.TOP);
+        statement.setBounds(360,70,330,getHeight() - 110);
 
         opLabel = new JLabel("Withdraw", JLabel.CENTER);
         opLabel.setForeground(MyColors.YELLOW_25);
         opLabel.setFont(new Font("sans-serif", Font.BOLD, 30));
         opLabel.setBounds(450,0,150,75);
 
-        display = new DisplayLabel("$0");
+        display = new DisplayLabel();
         display.setForeground(MyColors.WHITE_100);
         display.setOpaque(false);
         display.setFont(new Font("sans-serif", Font.BOLD, 24));
@@ -1925,6 +7622,23 @@ class InterfacePanel extends JPanel{
 
         IInputValidator val = n.getValidator();
 
+        transferTarget = new InputField(15); // account ids are 15 digits
+        transferTarget.setType(LoginType.SIGN_IN); // digits only, shows "Account Id" while empty
+        transferTarget.setOpaque(false);
+        transferTarget.setForeground(Color.white);
+        transferTarget.setFont(new Font("sans-serif", Font.BOLD, 18));
+        transferTarget.setHorizontalAlignment(JTextField.CENTER);
+        transferTarget.setSelectionColor(MyColors.SELECT_TEXT_COLOR);
+        transferTarget.setSelectedTextColor(Color.white);
+        transferTarget.setCaretColor(MyColors.WHITE_100);
+        transferTarget.setBounds(display.getX(),270,250,40);
+        transferTarget.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyReleased(KeyEvent e) {
+                val.runValidator();
+            }
+        });
+
         one = new BillButton("$1", display, val);
         one.setBounds(380 + (350 - 250) / 2,130,60,60);
         five = new BillButton("$5", display, val);
@@ -1944,8 +7658,7 @@ class InterfacePanel extends JPanel{
         transactionSuccess.setBounds(350,(getHeight() - 250) / 2,350,250);
         transactionSuccess.setVisible(false);
 
-        n.bind(display, user, () ->{
-            AccountManager.setHasChangeBeenMade();
+        n.bind(display, user, () -> transferTarget.checkAndUpdate() ? Long.parseLong(transferTarget.getText()) : -1, () ->{
             hideWithAndDep();
             transactionSuccess.setVisible(true);
             revalidate();
@@ -1976,18 +7689,27 @@ class InterfacePanel extends JPanel{
             switchOp();
         });
 
+        transfer.addActionListener(e -> {
+            hideBalanceMode();
+            op = Operation.TRANSFER;
+            switchOp();
+        });
+
         add(transactionSuccess);
         add(welcomeLabel);
         add(checkBalance);
         add(withdraw);
         add(deposit);
+        add(transfer);
         add(goBack);
         Rectangle b = getBounds();
         b.width *=2;
         setBounds(b);
         add(balance);
+        add(statement);
         add(opLabel);
         add(display);
+        add(transferTarget);
         add(one);
         add(five);
         add(ten);
@@ -1998,31 +7720,32 @@ class InterfacePanel extends JPanel{
     }
 
     void expand(){
-         new javax.swing.Timer(1, e->{
-             Rectangle bounds = getBounds();
-             bounds.x -= 10;
-             if(bounds.x >= -350){
-                 setBounds(bounds);
-                 getParent().repaint();
-             }
-             else{
-                 ((javax.swing.Timer)e.getSource()).stop();
-             }
-         }).start();
+        slideTo(-350);
     }
 
     void restore(){
-        new javax.swing.Timer(1, e->{
-            Rectangle bounds = getBounds();
-            bounds.x += 10;
-            if(bounds.x <= 0){
-                setBounds(bounds);
-                getParent().repaint();
-            }
-            else{
-                ((javax.swing.Timer)e.getSource()).stop();
-            }
-        }).start();
+        slideTo(0);
+    }
+
+    private void slideTo(int x){ // the panel is twice as wide as the screen, sliding it left shows its right half
+        if(slide != null){
+            slide.cancel(); // going back while it is still sliding out turns it around from where it is
+        }
+
+        int fromX = getX();
+        slide = AnimationClock.animate(SLIDE_MILLIS, Easing.EASE_IN_OUT, t -> setLocation(AnimationClock.lerp(fromX, x, t), getY()), null);
+    }
+
+    private void resizeFrame(int height){
+        if(frameResize != null){
+            frameResize.cancel();
+        }
+
+        int fromHeight = container.getHeight();
+        frameResize = AnimationClock.animate(SLIDE_MILLIS, Easing.EASE_IN_OUT, t -> {
+            container.setSize(container.getWidth(), AnimationClock.lerp(fromHeight, height, t));
+            container.repaint();
+        }, null);
     }
 
     void displayWelcomeAnimation(){
@@ -2038,6 +7761,7 @@ class InterfacePanel extends JPanel{
                     checkBalance.grow();
                     withdraw.grow();
                     deposit.grow();
+                    transfer.grow();
                 }
                 else{
                     welcomeLabel.setText(welcomeLabel.getText() + str.charAt(index++));
@@ -2057,12 +7781,57 @@ class InterfacePanel extends JPanel{
 
     private void showBalanceMode(){
         setBalanceVisibility(true);
-        balance.setText("Balance: $" + user.getBalance());
-        repaint();
+        balance.setText("Balance: $" + Money.format(user.getBalance())); // last balance we heard of, until the fresh one is there
+        statement.setText("");
+        CompletableFuture.runAsync(() -> { // same thread as the transactions, asking the server or reading the ledger stays off the EDT
+            long cents;
+            try {
+                cents = engine.getBalance(user);
+            } catch (IOException e) {
+                cents = user.getBalance();
+            }
+
+            LedgerEntry[] recent;
+            try {
+                recent = engine.getStatement(user, Long.MIN_VALUE, Long.MAX_VALUE, MINI_STATEMENT_SIZE);
+            } catch (IOException e) {
+                recent = null;
+            }
+
+            String balanceText = "Balance: $" + Money.format(cents);
+            String statementText = miniStatement(recent);
+            SwingUtilities.invokeLater(() -> {
+                balance.setText(balanceText);
+                statement.setText(statementText);
+                repaint();
+            });
+        }, NumPad.TRANSACTIONS);
+    }
+
+    private static String miniStatement(LedgerEntry[] recent){ // newest first, one row per transaction: date, amount (negative when money left), balance after it
+        if(recent == null){
+            return "<html>Transaction history unavailable</html>";
+        }
+
+        if(recent.length == 0){
+            return "<html>No transactions yet</html>";
+        }
+
+        SimpleDateFormat datePattern = new SimpleDateFormat("MM/dd HH:mm");
+        StringBuilder html = new StringBuilder("<html><table cellspacing='0' cellpadding='2'>");
+        for(LedgerEntry entry : recent){
+            long change = entry.getOperation() == Operation.WITHDRAW ? -entry.getAmount() : entry.getAmount(); // a transfer is already signed
+            html.append("<tr><td>").append(datePattern.format(new Date(entry.getTimestamp())))
+                    .append("</td><td align='right'>").append(change < 0 ? "-$" : "+$").append(Money.format(Math.abs(change)))
+                    .append("</td><td align='right'>$").append(Money.format(entry.getBalance())).append("</td></tr>");
+        }
+
+        return html.append("</table></html>").toString();
     }
 
     private void setBalanceVisibility(boolean isVisible){
         balance.setVisible(isVisible);
+        statement.setVisible(isVisible);
         revalidate();
         repaint();
     }
@@ -2078,6 +7847,7 @@ class InterfacePanel extends JPanel{
     private void setWithAndDepVisibility(boolean isVisible){
         opLabel.setVisible(isVisible);
         display.setVisible(isVisible);
+        transferTarget.setVisible(isVisible && op == Operation.TRANSFER);
         one.setVisible(isVisible);
         five.setVisible(isVisible);
         ten.setVisible(isVisible);
@@ -2090,30 +7860,14 @@ class InterfacePanel extends JPanel{
     }
 
     private void switchOp(){
-        if(op == Operation.DEPOSIT){
-            opLabel.setText("Deposit");
-            numpad.enableChecking(false);
-        }
-        else{
-            opLabel.setText("Withdraw");
-            numpad.enableChecking(true);
-        }
-
+        opLabel.setText(op == Operation.DEPOSIT ? "Deposit" : op == Operation.WITHDRAW ? "Withdraw" : "Transfer");
+        numpad.setOperation(op);
+        transferTarget.setType(LoginType.SIGN_IN); // clears it
         display.reset();
         showWithAndDep();
         goBack.setVisible(true);
         expand();
-        new javax.swing.Timer(1, ev -> {
-            Rectangle bb = container.getBounds();
-            bb.height += 10;
-            if(bb.height <= 810){
-                container.setBounds(bb);
-                container.repaint();
-            }
-            else{
-                ((javax.swing.Timer)ev.getSource()).stop();
-            }
-        }).start();
+        resizeFrame(810);
     }
 }
 
@@ -2122,6 +7876,8 @@ class InterfacePanel extends JPanel{
 class ATMFrame extends JFrame {
     private static final int FRAME_WIDTH = 700;
     private static final int FRAME_HEIGHT = 810;
+    private static final long FADE_MILLIS = 2000; // the screen lighting up after the startup animation
+    private static final float LOGO_ALPHA = 0.512f; // how far the logo fades in with it
 
     private final JImage headerLogo;
     private final JFadingImage screenLogo;
@@ -2136,8 +7892,12 @@ class ATMFrame extends JFrame {
     private JFadingImage exitIcon;
     private InterfacePanel interfacePanel;
     private final NumPad numpad;
+    private final IAtmService engine;
 
-    ATMFrame(){
+    ATMFrame(IAtmService engine){
+        this.engine = engine;
+        StartupTimeline.begin(StartupPhase.FRAME);
+        CountingRepaintManager.install(); // before any component asks for a repaint
         Dimension screenResolution = Toolkit.getDefaultToolkit().getScreenSize(); // get screen resolution
 
         int winX = (screenResolution.width - FRAME_WIDTH) / 2; // where to position the frame (middle of the screen)
@@ -2175,11 +7935,10 @@ class ATMFrame extends JFrame {
                 gCopy.setColor(MyColors.WHITE_100);
                 gCopy.fillRect(0, 0, getWidth(), getHeight()); // fill the rectangle
                 gCopy.dispose(); // dispose of our copy
-                getParent().repaint(); // force the "parent" aka frame to repaint the component
             }
         };
 
-        numpad = new NumPad();
+        numpad = new NumPad(engine);
         numpad.setOpaque(false);
         numpad.setBounds(virtualScreenX + 80, 520, 210,280);
 
@@ -2274,54 +8033,58 @@ class ATMFrame extends JFrame {
         add(numpad);
 
         setVisible(true);
+        StartupTimeline.end(StartupPhase.FRAME);
 
         startupScreen.addOnHideEvent(()->{
+            StartupTimeline.end(StartupPhase.WELCOME_ANIMATION);
             virtualScreen.add(screenLogo);
             revalidate();
             repaint();
-            new javax.swing.Timer(1, e -> {
-                Color currentBg = virtualScreen.getBackground();
-                int alpha = currentBg.getAlpha() + 1;
-                if(alpha > 255){
-                    ((javax.swing.Timer) e.getSource()).stop();
-                    virtualScreen.add(dateLabel);
-                    virtualScreen.add(logoutSpinner);
-                    virtualScreen.add(exitIcon);
-                    virtualScreen.add(loginPanel);
+            Color screenBg = virtualScreen.getBackground();
+            float logoAlpha = screenLogo.getAlpha();
+            AnimationClock.animate(FADE_MILLIS, Easing.LINEAR, t -> {
+                virtualScreen.setBackground(new Color(screenBg.getRed(), screenBg.getGreen(), screenBg.getBlue(), AnimationClock.lerp(screenBg.getAlpha(), 255, t)));
+                screenLogo.update(logoAlpha + (LOGO_ALPHA - logoAlpha) * t);
+                repaint(); // the screen is translucent until the end, what is behind it has to be painted again too
+            }, () -> {
+                virtualScreen.add(dateLabel);
+                virtualScreen.add(logoutSpinner);
+                virtualScreen.add(exitIcon);
+                virtualScreen.add(loginPanel);
+                repaint();
+                StartupTimeline.at(StartupPhase.READY);
+                javax.swing.Timer timer = new javax.swing.Timer(1000, ev -> {
+                    dateLabel.setText(datePattern.format(Calendar.getInstance().getTime()));
                     repaint();
-                    javax.swing.Timer timer = new javax.swing.Timer(1000, ev -> {
-                        dateLabel.setText(datePattern.format(Calendar.getInstance().getTime()));
-                        repaint();
-                    });
+                });
 
-                    timer.setInitialDelay(0);
-                    timer.start();
-                }
-                else{
-                    virtualScreen.setBackground(new Color(currentBg.getRed(), currentBg.getGreen(), currentBg.getBlue(), alpha));
-                    screenLogo.update(screenLogo.getAlpha() + 0.002f);
-                    repaint();
-                }
-            }).start();
+                timer.setInitialDelay(0);
+                timer.start();
+            });
         });
 
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                AccountManager.saveAllToFile();
+                try {
+                    engine.close();
+                } catch (IOException ex) { // in practice the last checkpoint of a local store, closing the connection to a server has nothing to lose
+                    JOptionPane.showMessageDialog(ATMFrame.this, "Failed to save accounts to file. " + ex.getMessage(), "Save Failed", JOptionPane.ERROR_MESSAGE);
+                }
             }
         });
 
+        StartupTimeline.begin(StartupPhase.WELCOME_ANIMATION);
         startupScreen.beginShow(true);
     }
 
     private void createLoginPanel(Rectangle bounds){
-        loginPanel = new LoginPanel(bounds);
+        loginPanel = new LoginPanel(bounds, engine);
         loginPanel.addLoginEvent(new AccountEvent() {
             @Override
             public void onLogin(LoginEventArgs e) {
                 idLabel.setText("ID: " + e.getUser().getId());
-                interfacePanel = new InterfacePanel(numpad, loginPanel.getBounds(), e.getUser());
+                interfacePanel = new InterfacePanel(numpad, loginPanel.getBounds(), e.getUser(), engine);
                 virtualScreen.remove(loginPanel);
                 virtualScreen.remove(exitIcon);
                 virtualScreen.add(idLabel);